@@ -0,0 +1,117 @@
+/**
+ * Checks that a HEAD leaves nothing behind on a kept-alive connection: sends HEAD and then GET for the same path on
+ * one connection and expects the HEAD's headers alone, then a GET response whose status line comes right after
+ * them, with a body of the Content-Length the HEAD announced. Pointed at the dispatcher in proxy mode, both requests
+ * go over the same pooled upstream connection, so a web server that sent a body after the HEAD would show up as a
+ * garbled or wrong GET response.
+ *
+ * Usage: java HeadCheck host:port [path]
+ * Exits with 1 if the check fails.
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+final class HeadCheck {
+    public static void main(String args[]) throws Exception {
+        if(args.length < 1 || args[0].lastIndexOf(':') < 1) {
+            System.err.println("Usage: java HeadCheck host:port [path]");
+            System.exit(1);
+        }
+        int colon = args[0].lastIndexOf(':');
+        String host = args[0].substring(0, colon);
+        int port = Integer.parseInt(args[0].substring(colon + 1));
+        String path = args.length > 1 ? args[1] : "/";
+
+        try (Socket socket = new Socket(host, port)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            // asked one after the other, so the dispatcher hands the GET the upstream connection the HEAD went over
+            out.write(request("HEAD", path, host, port).getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            Map<String, String> head = readHead(in);
+            out.write(request("GET", path, host, port).getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            Map<String, String> get;
+            try {
+                get = readHead(in);
+            } catch (SocketTimeoutException e) { // the proxy may be waiting for the rest of a response it misread
+                fail(path, "no response to the GET after the HEAD");
+                return;
+            }
+
+            long length;
+            String problem = null;
+            if(!head.get("").contains(" 200 "))
+                problem = "HEAD answered " + head.get("");
+            else if(!head.containsKey("content-length"))
+                problem = "HEAD has no Content-Length";
+            else if(!get.get("").startsWith("HTTP/1.") || !get.get("").contains(" 200 "))
+                problem = "GET after HEAD answered \"" + get.get("") + "\"";
+            else if(!head.get("content-length").equals(get.get("content-length")))
+                problem = "HEAD says " + head.get("content-length") + " bytes, GET " + get.get("content-length");
+            else if(!Objects.equals(head.get("etag"), get.get("etag")))
+                problem = "HEAD and GET have different ETags";
+            else if(skip(in, length = Long.parseLong(get.get("content-length"))) < length)
+                problem = "GET body shorter than its Content-Length";
+            if(problem != null)
+                fail(path, problem);
+            System.out.println("HEAD check passed for " + path + ": " + head.get("content-length") + " bytes announced, none sent");
+        }
+    }
+
+    private static void fail(String path, String problem) {
+        System.out.println("HEAD check failed for " + path + ": " + problem);
+        System.exit(1);
+    }
+
+    private static String request(String method, String path, String host, int port) {
+        return method + " " + path + " HTTP/1.1\r\nHost: " + host + ":" + port + "\r\nConnection: keep-alive\r\n\r\n";
+    }
+
+    // the status line under "" and the headers by lowercased name
+    private static Map<String, String> readHead(InputStream in) throws IOException {
+        Map<String, String> head = new HashMap<>();
+        String statusLine = readLine(in);
+        if(statusLine == null)
+            throw new EOFException("connection closed before the response");
+        head.put("", statusLine);
+        String line;
+        while((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if(colon > 0)
+                head.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+        }
+        return head;
+    }
+
+    // reads and throws away up to length bytes, returns how many there were before the connection closed
+    private static long skip(InputStream in, long length) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long received = 0;
+        while(received < length) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, length - received));
+            if(read == -1)
+                break;
+            received += read;
+        }
+        return received;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while((c = in.read()) != -1) {
+            if(c == '\n') {
+                int end = line.length();
+                if(end > 0 && line.charAt(end - 1) == '\r')
+                    line.setLength(end - 1);
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+}
@@ -0,0 +1,204 @@
+/**
+ * Drives a running dispatcher or web server with GET requests from a number of concurrent clients for a fixed
+ * time, then reports throughput and the latency distribution. Each client sends one request at a time and waits
+ * for the whole response (a closed loop), so the latencies are those a client would see at that concurrency.
+ *
+ * Usage: java LoadGenerator host:port [path ...]
+ * Without paths, every file in the pictures directory plus / is requested, in turn by each client.
+ *
+ * Options, as -D system properties:
+ *   load.concurrency     16 clients
+ *   load.seconds         30 measured
+ *   load.warmupSeconds   5 before measuring, so caches and the JIT are warm
+ *   load.keepAlive       true reuses each client's connection, false opens one per request
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+final class LoadGenerator {
+    private final String host;
+    private final int port;
+    private final List<String> paths;
+    private final boolean keepAlive;
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Histogram latency = metrics.histogram("latency");
+    private final LongAdder bytes = metrics.counter("bytes");
+    private final LongAdder errors = metrics.counter("errors");
+    private volatile boolean measuring = false;
+    private volatile boolean stopping = false;
+
+    LoadGenerator(String host, int port, List<String> paths, boolean keepAlive) {
+        this.host = host;
+        this.port = port;
+        this.paths = paths;
+        this.keepAlive = keepAlive;
+    }
+
+    public static void main(String args[]) throws Exception {
+        if(args.length < 1 || args[0].lastIndexOf(':') < 1) {
+            System.err.println("Usage: java LoadGenerator host:port [path ...]");
+            System.exit(1);
+        }
+        int colon = args[0].lastIndexOf(':');
+        List<String> paths = new ArrayList<>(Arrays.asList(args).subList(1, args.length));
+        if(paths.isEmpty()) {
+            paths.add("/");
+            File[] pictures = new File(WebServer.PICTURES_DIR).listFiles(File::isFile);
+            if(pictures != null) {
+                for(File picture : pictures)
+                    paths.add("/" + WebServer.PICTURES_DIR + "/" + URLEncoder.encode(picture.getName(), "UTF-8").replace("+", "%20"));
+            }
+        }
+        int concurrency = Integer.getInteger("load.concurrency", 16);
+        int seconds = Integer.getInteger("load.seconds", 30);
+        int warmupSeconds = Integer.getInteger("load.warmupSeconds", 5);
+        boolean keepAlive = Boolean.parseBoolean(System.getProperty("load.keepAlive", "true"));
+
+        LoadGenerator generator = new LoadGenerator(args[0].substring(0, colon), Integer.parseInt(args[0].substring(colon + 1)),
+                                                    paths, keepAlive);
+        System.out.println(concurrency + " clients, " + (keepAlive ? "keep-alive" : "a connection per request") + ", "
+                           + paths.size() + " paths, " + warmupSeconds + "s warm-up, " + seconds + "s measured");
+        generator.run(concurrency, warmupSeconds, seconds);
+    }
+
+    void run(int concurrency, int warmupSeconds, int seconds) throws InterruptedException {
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        for(int i = 0; i < concurrency; i++) {
+            int first = i;
+            clients.execute(() -> client(first));
+        }
+        Thread.sleep(warmupSeconds * 1000L);
+        measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        measuring = false;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        stopping = true;
+        clients.shutdown();
+        clients.awaitTermination(10, TimeUnit.SECONDS);
+        report(elapsed);
+    }
+
+    // one closed-loop client, starting at a different path than the others so they don't move in lockstep
+    private void client(int first) {
+        Socket socket = null;
+        int next = first;
+        while(!stopping) {
+            String path = paths.get(Math.floorMod(next++, paths.size()));
+            long start = System.nanoTime();
+            try {
+                if(socket == null) {
+                    socket = new Socket(host, port);
+                    socket.setSoTimeout(10000);
+                    socket.setTcpNoDelay(true);
+                }
+                boolean open = request(socket, path);
+                if(measuring)
+                    latency.recordSince(start);
+                if(!open) {
+                    socket.close();
+                    socket = null;
+                }
+            } catch (IOException e) {
+                if(measuring)
+                    errors.increment();
+                close(socket);
+                socket = null;
+            }
+        }
+        close(socket);
+    }
+
+    /*
+     * sends one request and reads the whole response. Returns whether the connection can be used again
+     */
+    private boolean request(Socket socket, String path) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(("GET " + path + " HTTP/1.1\r\nHost: " + host + ":" + port + "\r\nAccept-Encoding: gzip\r\n"
+                   + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+
+        InputStream in = socket.getInputStream();
+        String statusLine = readLine(in);
+        if(statusLine == null)
+            throw new EOFException("connection closed before the response");
+        long length = -1;
+        boolean close = !keepAlive;
+        String line;
+        while((line = readLine(in)) != null && !line.isEmpty()) {
+            String lower = line.toLowerCase();
+            if(lower.startsWith("content-length:"))
+                length = Long.parseLong(line.substring(15).trim());
+            else if(lower.startsWith("connection:") && lower.contains("close"))
+                close = true;
+        }
+        long received = skip(in, statusLine.contains(" 304 ") ? 0 : length);
+        if(measuring) {
+            metrics.status(statusLine);
+            bytes.add(received);
+        }
+        return !close && length >= 0;
+    }
+
+    // reads and throws away length bytes, or everything until the connection closes if length is negative
+    private static long skip(InputStream in, long length) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long received = 0;
+        while(length < 0 || received < length) {
+            int read = in.read(buffer, 0, length < 0 ? buffer.length : (int) Math.min(buffer.length, length - received));
+            if(read == -1) {
+                if(length < 0)
+                    break;
+                throw new EOFException("response ended " + (length - received) + " bytes early");
+            }
+            received += read;
+        }
+        return received;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while((c = in.read()) != -1) {
+            if(c == '\n') {
+                int end = line.length();
+                if(end > 0 && line.charAt(end - 1) == '\r')
+                    line.setLength(end - 1);
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    private static void close(Socket socket) {
+        if(socket == null)
+            return;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+
+    private void report(double elapsed) {
+        long requests = latency.count();
+        System.out.printf(Locale.ROOT, "%nrequests    %d in %.1fs, %d errors%n", requests, elapsed, errors.sum());
+        System.out.printf(Locale.ROOT, "throughput  %.1f requests/s, %.2f MB/s%n", requests / elapsed, bytes.sum() / elapsed / (1024 * 1024));
+        System.out.printf(Locale.ROOT, "latency     mean %s  p50 %s  p99 %s  p999 %s  max %s%n", millis(latency.mean()),
+                          millis(latency.percentile(0.5)), millis(latency.percentile(0.99)), millis(latency.percentile(0.999)),
+                          millis(latency.max()));
+        for(String line : metrics.render().split("\n")) {
+            if(line.startsWith("responses."))
+                System.out.println("status      " + line.substring("responses.".length()));
+        }
+    }
+
+    private static String millis(long micros) {
+        return String.format(Locale.ROOT, "%.2fms", micros / 1000.0);
+    }
+}
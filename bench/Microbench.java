@@ -0,0 +1,176 @@
+/**
+ * Microbenchmarks for the pieces every request goes through: finding the file, its content type, parsing the
+ * request head, reading a file, and rendering a search page. Run from the project directory with `make bench`,
+ * since several of them use index.html and the pictures directory.
+ *
+ * JMH can't be used in this build, which has no dependency management, so this follows its method on a small
+ * scale: every benchmark is first run for warm-up iterations so the JIT has compiled it, then for timed iterations,
+ * and each result is stored to a volatile sink so the work can't be optimized away.
+ *
+ * Options, as -D system properties:
+ *   bench.filter            only run benchmarks whose name contains this
+ *   bench.warmupIterations  5
+ *   bench.iterations        5
+ *   bench.iterationMillis   1000
+ *   bench.save              file to write the results to, as "name nanosPerOp" lines
+ *   bench.compare           results file from an earlier run, each benchmark is compared against it and the run
+ *                           exits with status 1 if any got slower by more than bench.tolerance (default 0.1)
+ */
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+final class Microbench {
+    interface Op {
+        Object run() throws Exception;
+    }
+
+    static volatile Object sink;
+
+    public static void main(String args[]) throws Exception {
+        String filter = System.getProperty("bench.filter", "");
+        int warmups = Integer.getInteger("bench.warmupIterations", 5);
+        int iterations = Integer.getInteger("bench.iterations", 5);
+        long iterationNanos = Long.getLong("bench.iterationMillis", 1000L) * 1000000;
+
+        WebServer.pictureIndex = PictureIndex.open("./" + WebServer.PICTURES_DIR + "/");
+        File[] pictures = new File(WebServer.PICTURES_DIR).listFiles(File::isFile);
+        if(pictures == null || pictures.length == 0) {
+            System.err.println("run from the project directory, the benchmarks need " + WebServer.PICTURES_DIR + "/");
+            System.exit(1);
+        }
+        Arrays.sort(pictures);
+        File largest = pictures[0];
+        for(File picture : pictures) {
+            if(picture.length() > largest.length())
+                largest = picture;
+        }
+        String picturePath = "/" + WebServer.PICTURES_DIR + "/" + pictures[0].getName();
+        File fileToRead = largest;
+
+        String[] names = { "index.html", "styles.css", "app.js", "photo.jpg", "photo.png", "anim.gif", "paper.pdf", "notes.txt" };
+        String[] headLines = { "GET " + picturePath + " HTTP/1.1", "Host: oak.ad.ilstu.edu:12430",
+                               "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:115.0) Gecko/20100101 Firefox/115.0",
+                               "Accept: image/avif,image/webp,*/*", "Accept-Language: en-US,en;q=0.5",
+                               "Accept-Encoding: gzip, deflate", "Connection: keep-alive" };
+
+        Map<String, Op> benchmarks = new LinkedHashMap<>();
+        benchmarks.put("locateFile.index", () -> WebServer.HttpRequest.locateFile("/"));
+        benchmarks.put("locateFile.picture", () -> WebServer.HttpRequest.locateFile(picturePath));
+        benchmarks.put("locateFile.missing", () -> WebServer.HttpRequest.locateFile("/pictures/../missing.jpg"));
+        int[] next = { 0 };
+        benchmarks.put("contentType", () -> WebServer.HttpRequest.contentType(names[next[0]++ & 7]));
+        benchmarks.put("parseRequest", () -> {
+            StringTokenizer tokens = new StringTokenizer(headLines[0]);
+            String method = tokens.nextToken();
+            String target = tokens.nextToken();
+            Map<String, String> headers = new HashMap<>();
+            for(int i = 1; i < headLines.length; i++)
+                WebServer.HttpRequest.parseHeader(headLines[i], headers);
+            return WebServer.HttpRequest.isKeepAlive(headLines[0], headers) ? target : method;
+        });
+        benchmarks.put("createHTML", () -> WebServer.HttpRequest.createHTML("e"));
+        benchmarks.put("readAllBytes", () -> Files.readAllBytes(fileToRead.toPath()));
+        // how files were sent before they went through memcached: 1KB at a time through a stream
+        byte[] buffer = new byte[1024];
+        OutputStream discard = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                sink = b;
+            }
+        };
+        benchmarks.put("streamCopy1k", () -> {
+            try (FileInputStream in = new FileInputStream(fileToRead)) {
+                int bytes;
+                while((bytes = in.read(buffer)) != -1)
+                    discard.write(buffer, 0, bytes);
+            }
+            return buffer;
+        });
+
+        Map<String, Double> baseline = load(System.getProperty("bench.compare"));
+        double tolerance = Double.parseDouble(System.getProperty("bench.tolerance", "0.1"));
+        Map<String, Double> results = new LinkedHashMap<>();
+        boolean regressed = false;
+
+        System.out.println("read benchmarks use " + fileToRead + " (" + fileToRead.length() + " bytes)\n");
+        System.out.printf("%-22s %14s %12s%n", "benchmark", "ns/op", "+-");
+        for(Map.Entry<String, Op> benchmark : benchmarks.entrySet()) {
+            if(!benchmark.getKey().contains(filter))
+                continue;
+            Op op = benchmark.getValue();
+            for(int i = 0; i < warmups; i++)
+                iteration(op, iterationNanos);
+            double[] samples = new double[iterations];
+            for(int i = 0; i < iterations; i++)
+                samples[i] = iteration(op, iterationNanos);
+
+            double mean = 0;
+            for(double sample : samples)
+                mean += sample / iterations;
+            double deviation = 0;
+            for(double sample : samples)
+                deviation += (sample - mean) * (sample - mean) / iterations;
+            deviation = Math.sqrt(deviation);
+            results.put(benchmark.getKey(), mean);
+
+            String comparison = "";
+            Double before = baseline.get(benchmark.getKey());
+            if(before != null) {
+                double change = (mean - before) / before;
+                comparison = String.format(Locale.ROOT, "  %+.1f%% vs baseline", change * 100);
+                if(change > tolerance) {
+                    comparison += "  REGRESSION";
+                    regressed = true;
+                }
+            }
+            System.out.printf(Locale.ROOT, "%-22s %14.1f %12.1f%s%n", benchmark.getKey(), mean, deviation, comparison);
+        }
+
+        String save = System.getProperty("bench.save");
+        if(save != null) {
+            try (PrintWriter out = new PrintWriter(new FileWriter(save))) {
+                for(Map.Entry<String, Double> result : results.entrySet())
+                    out.printf(Locale.ROOT, "%s %.3f%n", result.getKey(), result.getValue());
+            }
+        }
+        System.exit(regressed ? 1 : 0);
+    }
+
+    /*
+     * runs op for about iterationNanos and returns the average nanoseconds per call. Calls are timed in batches
+     * that grow until a batch takes a millisecond, so reading the clock doesn't dominate fast operations
+     */
+    private static double iteration(Op op, long iterationNanos) throws Exception {
+        long calls = 0;
+        int batch = 1;
+        long start = System.nanoTime();
+        long now = start;
+        while(now - start < iterationNanos) {
+            long batchStart = now;
+            for(int i = 0; i < batch; i++)
+                sink = op.run();
+            calls += batch;
+            now = System.nanoTime();
+            if(now - batchStart < 1000000 && batch < (1 << 20))
+                batch *= 2;
+        }
+        return (double) (now - start) / calls;
+    }
+
+    private static Map<String, Double> load(String file) throws IOException {
+        Map<String, Double> results = new HashMap<>();
+        if(file == null)
+            return results;
+        for(String line : Files.readAllLines(Paths.get(file))) {
+            String[] fields = line.trim().split(" ");
+            if(fields.length == 2)
+                results.put(fields[0], Double.parseDouble(fields[1]));
+        }
+        return results;
+    }
+}
@@ -0,0 +1,38 @@
+#!/bin/sh
+# Runs the whole chain on this machine: a cache node, one web server and a dispatcher in proxy mode, then
+# checks with HeadCheck that a HEAD leaves its pooled upstream connection clean, drives the dispatcher with LoadGenerator
+# and stops everything. Run from the project directory after `make bench`.
+# Set MEMCACHED=external to use a memcached already listening on MEMCACHED_PORT instead of a CacheNode.
+# SERVER=SimpleServer runs the HttpServer-based server in place of WebServer.
+# SERVER_OPTS, DISPATCHER_OPTS and CACHENODE_OPTS are passed to the servers' JVMs, LOAD_OPTS to LoadGenerator's, e.g.
+#   SERVER_OPTS=-Dserver.engine=nio LOAD_OPTS="-Dload.concurrency=64 -Dload.keepAlive=false" sh bench/run-local.sh
+CP="spymemcached-2.10.3.jar:."
+SERVER=${SERVER:-WebServer}
+MEMCACHED_PORT=${MEMCACHED_PORT:-12350}
+SERVER_PORT=${SERVER_PORT:-12430}
+DISPATCHER_PORT=${DISPATCHER_PORT:-12431}
+LOGS=${LOGS:-logs/bench}
+mkdir -p "$LOGS"
+echo "127.0.0.1:$SERVER_PORT" > "$LOGS/hosts"
+
+PIDS=""
+trap 'kill $PIDS 2>/dev/null' EXIT INT TERM
+if [ "$MEMCACHED" != "external" ]; then
+    java -cp "$CP" $CACHENODE_OPTS CacheNode "$MEMCACHED_PORT" > "$LOGS/memcached.log" 2>&1 &
+    PIDS="$PIDS $!"
+fi
+java -cp "$CP" -Dmemcached.host=127.0.0.1 -Dmemcached.port="$MEMCACHED_PORT" -Dlog.file="$LOGS/access.log" \
+     $SERVER_OPTS "$SERVER" "$SERVER_PORT" > "$LOGS/webserver.log" 2>&1 &
+PIDS="$PIDS $!"
+# all the load comes from one address, so the dispatcher's per-client limit is off
+java -cp "$CP" -Ddispatcher.mode=proxy -Ddispatcher.hostsFile="$LOGS/hosts" -Dlog.file="$LOGS/dispatcher-access.log" -Dadmission.maxPerClient=0 \
+     $DISPATCHER_OPTS Dispatcher "$DISPATCHER_PORT" > "$LOGS/dispatcher.log" 2>&1 &
+PIDS="$PIDS $!"
+sleep 2
+
+# a HEAD that left a body behind on a pooled upstream connection would garble the responses measured below
+java -cp "$CP" HeadCheck "127.0.0.1:$DISPATCHER_PORT" || exit 1
+java -cp "$CP" $LOAD_OPTS LoadGenerator "127.0.0.1:$DISPATCHER_PORT"
+echo
+echo "web server metrics:"
+curl -s "http://127.0.0.1:$SERVER_PORT/_admin/metrics" | grep -E '^(stage|request)\.[a-zA-Z]*\.?(count|p50|p99|p999) |hitRatio' || true
@@ -0,0 +1,240 @@
+/**
+ * One line per answered request, written by a single background thread so request threads never wait on the log.
+ * Requests hand their entry to a bounded lock-free ring buffer and go on; the writer drains whatever has
+ * accumulated, formats it and writes it to the file in one batch, rotating the file once it grows past a size.
+ * If the writer falls behind and the ring is full, entries are dropped and counted rather than blocking anyone.
+ *
+ * Format placeholders (-Dlog.format):
+ *   %t time (ISO-8601, UTC)   %a client address   %r request line   %s status code
+ *   %b bytes sent             %D microseconds from request to last byte   %u web server routed to   %% a literal %
+ */
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+final class AccessLog {
+    private static final String DEFAULT_FORMAT = "%t %a \"%r\" %s %b %D %u";
+
+    private static final class Entry {
+        final long time;
+        final String client;
+        final String requestLine;
+        final String statusLine;
+        final long bytes;
+        final long micros;
+        final String upstream;
+
+        Entry(long time, String client, String requestLine, String statusLine, long bytes, long micros, String upstream) {
+            this.time = time;
+            this.client = client;
+            this.requestLine = requestLine;
+            this.statusLine = statusLine;
+            this.bytes = bytes;
+            this.micros = micros;
+            this.upstream = upstream;
+        }
+    }
+
+    private final String path;  // null writes to standard out
+    private final char[] format;
+    private final double sampleRate;
+    private final long maxBytes;
+    private final int maxFiles;
+    private final long flushNanos;
+
+    // producers claim a slot by advancing head, the writer empties slots in order and then advances tail, so a slot
+    // is only reused once the writer is done with it. A claimed slot stays null until its entry is stored
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final Thread writer;
+    private volatile boolean closing = false;
+    private OutputStream out;   // only touched by the writer thread
+    private long fileBytes;
+
+    private AccessLog(String path, String format, double sampleRate, int capacity, long maxBytes, int maxFiles, long flushMillis) {
+        this.path = path;
+        this.format = format.toCharArray();
+        this.sampleRate = sampleRate;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1; // next power of two
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+
+        this.writer = new Thread(this::drainLoop, "access-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    /*
+     * the log configured with -Dlog.* properties, or null if -Dlog.file=off. defaultFile is used unless log.file is
+     * given, "-" logs to standard out
+     */
+    static AccessLog fromProperties(String defaultFile) {
+        String file = System.getProperty("log.file", defaultFile);
+        if(file.equals("off"))
+            return null;
+        return new AccessLog(file.equals("-") ? null : file,
+                             System.getProperty("log.format", DEFAULT_FORMAT),
+                             Double.parseDouble(System.getProperty("log.sampleRate", "1")),
+                             Integer.getInteger("log.bufferEntries", 8192),
+                             Long.getLong("log.maxBytes", 64L * 1024 * 1024),
+                             Integer.getInteger("log.maxFiles", 5),
+                             Long.getLong("log.flushMillis", 100L));
+    }
+
+    /*
+     * queues an entry for a request that was answered. upstream is the web server the request went to, or null.
+     * Returns right away, whether the entry was queued, sampled out or dropped. Server errors are never sampled out
+     */
+    void log(String client, String requestLine, String statusLine, long bytes, long micros, String upstream) {
+        if(sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate && Metrics.statusCode(statusLine) < 500)
+            return;
+        Entry entry = new Entry(System.currentTimeMillis(), client, requestLine, statusLine, bytes, micros, upstream);
+        long claimed;
+        do {
+            claimed = head.get();
+            if(claimed - tail.get() >= slots.length()) {
+                dropped.increment();
+                return;
+            }
+        } while(!head.compareAndSet(claimed, claimed + 1));
+        slots.set((int) claimed & mask, entry);
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    long written() {
+        return written.sum();
+    }
+
+    private void drainLoop() {
+        StringBuilder batch = new StringBuilder(64 * 1024);
+        while(!closing) {
+            if(drain(batch) == 0)
+                LockSupport.parkNanos(flushNanos);
+        }
+        drain(batch);
+    }
+
+    /*
+     * formats and writes every entry stored so far in one write, returning how many there were. Stops early at a
+     * slot that is claimed but not filled yet, the next pass picks it up
+     */
+    private int drain(StringBuilder batch) {
+        int count = 0;
+        long next = tail.get();
+        Entry entry;
+        while(next < head.get() && (entry = slots.getAndSet((int) next & mask, null)) != null) {
+            format(entry, batch);
+            next++;
+            tail.set(next); // frees the slot for producers
+            count++;
+        }
+        if(count == 0)
+            return 0;
+        try {
+            byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+            output().write(bytes);
+            out.flush();
+            fileBytes += bytes.length;
+            written.add(count);
+            if(path != null && fileBytes >= maxBytes)
+                rotate();
+        } catch (IOException e) {
+            dropped.add(count);
+            System.err.println("couldn't write the access log: " + e);
+            closeFile();
+        }
+        batch.setLength(0);
+        return count;
+    }
+
+    private OutputStream output() throws IOException {
+        if(out == null) {
+            if(path == null) {
+                out = System.out;
+            } else {
+                File file = new File(path);
+                File directory = file.getAbsoluteFile().getParentFile();
+                if(directory != null)
+                    directory.mkdirs();
+                fileBytes = file.length();
+                out = new FileOutputStream(file, true);
+            }
+        }
+        return out;
+    }
+
+    // path becomes path.1, path.1 becomes path.2 and so on, the oldest past maxFiles is deleted
+    private void rotate() throws IOException {
+        closeFile();
+        for(int i = maxFiles - 1; i >= 1; i--) {
+            Path older = Paths.get(path + "." + i);
+            if(Files.exists(older))
+                Files.move(older, Paths.get(path + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+        }
+        if(maxFiles > 0)
+            Files.move(Paths.get(path), Paths.get(path + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        else
+            Files.deleteIfExists(Paths.get(path));
+    }
+
+    private void closeFile() {
+        if(out != null && out != System.out) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // the entries were written or already counted as dropped
+            }
+        }
+        out = null;
+    }
+
+    // lets the writer finish what is queued, for a shutdown that doesn't lose the last requests
+    private void close() {
+        closing = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void format(Entry entry, StringBuilder line) {
+        for(int i = 0; i < format.length; i++) {
+            char c = format[i];
+            if(c != '%' || i + 1 == format.length) {
+                line.append(c);
+                continue;
+            }
+            switch(format[++i]) {
+                case 't': line.append(Instant.ofEpochMilli(entry.time)); break;
+                case 'a': line.append(entry.client); break;
+                case 'r': line.append(entry.requestLine); break;
+                case 's': line.append(Metrics.statusCode(entry.statusLine)); break;
+                case 'b': line.append(entry.bytes); break;
+                case 'D': line.append(entry.micros); break;
+                case 'u': line.append(entry.upstream == null ? "-" : entry.upstream); break;
+                case '%': line.append('%'); break;
+                default: line.append('%').append(format[i]);
+            }
+        }
+        line.append('\n');
+    }
+}
@@ -0,0 +1,244 @@
+/**
+ * Turns work away early when a server is given more than it can answer quickly, so under overload most requests are
+ * still served fast and the rest get a cheap error they can retry, instead of every request waiting until clients
+ * time out. Every rejection is a 503, or a 429 for a client over its own limit, with Retry-After and the connection
+ * closed, and is counted under admission.rejected in the metrics.
+ *
+ *  - Connections wait for a thread in a bounded queue (see ThreadPools). One that finds it full, or that has waited
+ *    longer than the deadline by the time a thread takes it, is answered with a 503 without reading its request:
+ *    its client has likely given up already, and serving it would only make the connections behind it late too.
+ *  - A client address may hold a limited number of connections at once, so a single client can't fill the queue.
+ *  - Requests being answered at once are capped by a limit that adapts to their latency, additive increase and
+ *    multiplicative decrease: while a window's average latency stays within tolerance times the lowest seen lately,
+ *    and the requests came close to the limit, it grows by one; once latency climbs past that, i.e. requests are
+ *    queueing for memcached, the disk or the web servers, it is cut by backoff. Averages under latencyFloorMillis are
+ *    never taken for queueing, a cache hit takes microseconds and a few disk reads would otherwise look like
+ *    overload. The lowest latency is forgotten every baselineSeconds so it follows the server when its unloaded
+ *    latency changes.
+ *
+ * Options, as -D system properties:
+ *   admission.queueDeadlineMillis   500 a connection may wait for a thread
+ *   admission.maxPerClient          connections per client address, 0 for no limit. Defaults differ per server
+ *   admission.retryAfterSeconds     1
+ *   admission.initialLimit          20 requests answered at once
+ *   admission.minLimit              4
+ *   admission.maxLimit              1000
+ *   admission.tolerance             2.0
+ *   admission.backoff               0.9
+ *   admission.latencyFloorMillis    5
+ *   admission.windowMillis          100 between adjustments of the limit
+ *   admission.baselineSeconds       30
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+final class AdmissionControl {
+    static final String UNAVAILABLE = "HTTP/1.1 503 Service Unavailable";
+    static final String TOO_MANY_REQUESTS = "HTTP/1.1 429 Too Many Requests";
+    static final int RETRY_AFTER_SECONDS = Integer.getInteger("admission.retryAfterSeconds", 1);
+    // windows with fewer requests than this are extended, their average says little
+    private static final int MIN_SAMPLES = 10;
+
+    private final Metrics metrics;
+    private final long queueDeadlineNanos = Long.getLong("admission.queueDeadlineMillis", 500L) * 1000000;
+    private final int maxPerClient;
+    private final ConcurrentHashMap<InetAddress, Integer> clients = new ConcurrentHashMap<>();
+    private final LongAdder queueFull;
+    private final LongAdder queueTimeout;
+    private final LongAdder perClient;
+    private final LongAdder overLimit;
+
+    private final int minLimit = Integer.getInteger("admission.minLimit", 4);
+    private final int maxLimit = Integer.getInteger("admission.maxLimit", 1000);
+    private final double tolerance = Double.parseDouble(System.getProperty("admission.tolerance", "2.0"));
+    private final double backoff = Double.parseDouble(System.getProperty("admission.backoff", "0.9"));
+    private final long latencyFloorNanos = Long.getLong("admission.latencyFloorMillis", 5L) * 1000000;
+    private final long windowNanos = Long.getLong("admission.windowMillis", 100L) * 1000000;
+    private final long baselineNanos = Long.getLong("admission.baselineSeconds", 30L) * 1000000000;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger(); // most requests at once during this window
+    private volatile int limit;
+    // guarded by this: the window being sampled, the limit as a fraction, and the lowest window averages
+    private double exactLimit;
+    private long windowStart = System.nanoTime();
+    private long windowTotal;
+    private int windowSamples;
+    private long baseline = Long.MAX_VALUE;
+    private long nextBaseline = Long.MAX_VALUE;
+    private long baselineStart = System.nanoTime();
+
+    /*
+     * admission for one server, counted in its metrics. defaultMaxPerClient is used unless -Dadmission.maxPerClient is set
+     */
+    AdmissionControl(Metrics metrics, int defaultMaxPerClient) {
+        this.metrics = metrics;
+        this.maxPerClient = Integer.getInteger("admission.maxPerClient", defaultMaxPerClient);
+        this.exactLimit = Math.max(minLimit, Math.min(maxLimit, Integer.getInteger("admission.initialLimit", 20)));
+        this.limit = (int) exactLimit;
+        queueFull = metrics.counter("admission.rejected.queueFull");
+        queueTimeout = metrics.counter("admission.rejected.queueTimeout");
+        perClient = metrics.counter("admission.rejected.perClient");
+        overLimit = metrics.counter("admission.rejected.limit");
+        metrics.gauge("admission.limit", () -> limit);
+        metrics.gauge("admission.inFlight", inFlight::get);
+        metrics.gauge("admission.clients", clients::size);
+        metrics.gauge("admission.baselineMicros", this::baselineMicros);
+    }
+
+    /*
+     * hands a new connection's task to pool, unless its client already holds too many connections or the pool's
+     * queue is full. If the task has waited past the deadline when it gets a thread, the connection is answered with
+     * a 503 instead. Called on the accept thread
+     */
+    void submit(ExecutorService pool, Socket socket, Callable<Void> task) {
+        InetAddress client = socket.getInetAddress();
+        if(!admit(socket))
+            return;
+        long queued = System.nanoTime();
+        try {
+            pool.submit(() -> {
+                try {
+                    if(System.nanoTime() - queued > queueDeadlineNanos) {
+                        queueTimeout.increment();
+                        reject(socket, UNAVAILABLE);
+                        return null;
+                    }
+                    return task.call();
+                } finally {
+                    leave(client);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            leave(client);
+            queueFull.increment();
+            reject(socket, UNAVAILABLE);
+        }
+    }
+
+    /*
+     * counts a new connection against its client's limit, answering it with a 429 and closing it if that is reached.
+     * The socket must still be in blocking mode. Every admitted connection is left once it is closed
+     */
+    boolean admit(Socket socket) {
+        if(enter(socket.getInetAddress()))
+            return true;
+        reject(socket, TOO_MANY_REQUESTS);
+        return false;
+    }
+
+    /*
+     * counts one more connection or request of client, false (and counted as rejected) if it already has maxPerClient
+     */
+    boolean enter(InetAddress client) {
+        if(maxPerClient <= 0)
+            return true;
+        if(clients.merge(client, 1, Integer::sum) <= maxPerClient)
+            return true;
+        leave(client);
+        perClient.increment();
+        return false;
+    }
+
+    void leave(InetAddress client) {
+        if(maxPerClient > 0)
+            clients.computeIfPresent(client, (address, count) -> count == 1 ? null : count - 1);
+    }
+
+    /*
+     * takes a place for a request under the adaptive limit. Returns when it started, to be passed to release once the
+     * request is answered, or -1 (counted as rejected) if the limit is reached and the request should get a 503
+     */
+    long acquire() {
+        while(true) {
+            int current = inFlight.get();
+            if(current >= limit) {
+                overLimit.increment();
+                return -1;
+            }
+            if(inFlight.compareAndSet(current, current + 1)) {
+                peakInFlight.accumulateAndGet(current + 1, Math::max);
+                return System.nanoTime();
+            }
+        }
+    }
+
+    void release(long started) {
+        inFlight.decrementAndGet();
+        sample(System.nanoTime() - started);
+    }
+
+    // adds a request's latency to the window, and adjusts the limit when the window is over
+    private synchronized void sample(long latency) {
+        windowTotal += latency;
+        windowSamples++;
+        long now = System.nanoTime();
+        if(now - windowStart < windowNanos || windowSamples < MIN_SAMPLES)
+            return;
+
+        long average = windowTotal / windowSamples;
+        if(now - baselineStart >= baselineNanos) {
+            baseline = nextBaseline;
+            nextBaseline = Long.MAX_VALUE;
+            baselineStart = now;
+        }
+        baseline = Math.min(baseline, average);
+        nextBaseline = Math.min(nextBaseline, average);
+
+        if(average > Math.max(baseline * tolerance, latencyFloorNanos))
+            exactLimit = Math.max(minLimit, exactLimit * backoff);
+        else if(peakInFlight.get() >= exactLimit / 2) // a limit the requests never came near says nothing
+            exactLimit = Math.min(maxLimit, exactLimit + 1);
+        limit = (int) exactLimit;
+
+        windowStart = now;
+        windowTotal = 0;
+        windowSamples = 0;
+        peakInFlight.set(inFlight.get());
+    }
+
+    private synchronized String baselineMicros() {
+        return baseline == Long.MAX_VALUE ? "n/a" : String.format(Locale.ROOT, "%.1f", baseline / 1000.0);
+    }
+
+    /*
+     * the whole response to a request that is turned away, after which the connection is closed
+     */
+    static byte[] response(String statusLine) {
+        return (statusLine + "\r\n" +
+                "Retry-After: " + RETRY_AFTER_SECONDS + "\r\n" +
+                "Content-Length: 0\r\n" +
+                "Connection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // whether statusLine is one of the responses above, which tell the client when to retry
+    static boolean turnedAway(String statusLine) {
+        return statusLine.equals(UNAVAILABLE) || statusLine.equals(TOO_MANY_REQUESTS);
+    }
+
+    /*
+     * answers a connection whose request wasn't read and closes it. On a new connection the write fits in the socket's
+     * buffer, so the accept thread never blocks here
+     */
+    private void reject(Socket socket, String statusLine) {
+        metrics.status(statusLine);
+        try {
+            socket.getOutputStream().write(response(statusLine));
+            // closing with the request still unread would reset the connection, maybe before the client read the answer
+            socket.shutdownOutput();
+            InputStream in = socket.getInputStream();
+            in.skip(in.available());
+        } catch (IOException e) {
+            // the client is gone, nothing to tell it
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing left to clean up
+            }
+        }
+    }
+}
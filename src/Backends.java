@@ -0,0 +1,273 @@
+/**
+ * The dispatcher's view of its web servers: which ones are up, how busy they are and how fast they've been answering.
+ * A background thread probes every server's stats page (active health checks), and servers whose forwarded requests
+ * keep failing are ejected for a while (passive outlier detection). Routing only considers servers that pass both.
+ *
+ * Routing policies:
+ *   roundrobin - the next available server in turn
+ *   hash       - consistent hashing of the request target, see HashRing
+ *   p2c        - power of two choices: of two random available servers, the one with the lower
+ *                latency EWMA times outstanding requests
+ *
+ * The server list can be read from a file, one host:port per line, which is re-read whenever it changes.
+ * If no server is available, every server is considered again rather than failing every request.
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+final class Backends {
+    private static final double EWMA_WEIGHT = 0.3; // share of a new latency sample in the average
+
+    static final class Backend {
+        final String host;
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicInteger consecutiveFailures = new AtomicInteger();
+        final LongAdder requests = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        int failedProbes = 0;              // only touched by the health check thread
+        volatile boolean healthy = true;  // set by the active health checks
+        volatile long ejectedUntil = 0;    // set by passive outlier detection
+        volatile double ewmaMillis = 0;    // 0 until the first sample
+
+        Backend(String host) {
+            this.host = host;
+        }
+
+        boolean available(long now) {
+            return healthy && now >= ejectedUntil;
+        }
+
+        synchronized void recordLatency(long millis) {
+            ewmaMillis = ewmaMillis == 0 ? millis : EWMA_WEIGHT * millis + (1 - EWMA_WEIGHT) * ewmaMillis;
+        }
+
+        // expected wait for one more request
+        double cost() {
+            return Math.max(ewmaMillis, 1) * (outstanding.get() + 1);
+        }
+    }
+
+    // swapped as a whole when the server list is reloaded
+    private static final class Snapshot {
+        final List<Backend> list;
+        final Map<String, Backend> byHost;
+        final HashRing ring;
+
+        Snapshot(List<Backend> list, int virtualNodes) {
+            this.list = list;
+            this.byHost = new HashMap<>();
+            for(Backend backend : list)
+                byHost.put(backend.host, backend);
+            this.ring = new HashRing(byHost.keySet(), virtualNodes);
+        }
+    }
+
+    private final String routing;
+    private final int virtualNodes;
+    private final double loadFactor;
+    private final int failuresToEject;
+    private final long ejectMillis;
+    private final int failuresToMarkDown;
+    private final String healthPath;
+    private final Path hostsFile;
+    private volatile Snapshot snapshot;
+    private long hostsFileModified = -1;
+    private final AtomicInteger nextHost = new AtomicInteger();
+
+    Backends(String[] defaultHosts, String routing) {
+        this.routing = routing;
+        this.virtualNodes = Integer.getInteger("hash.virtualNodes", 160);
+        this.loadFactor = Double.parseDouble(System.getProperty("hash.loadFactor", "1.25"));
+        this.failuresToEject = Integer.getInteger("outlier.consecutiveFailures", 3);
+        this.ejectMillis = Long.getLong("outlier.ejectMillis", 10000L);
+        this.failuresToMarkDown = Integer.getInteger("health.unhealthyThreshold", 2);
+        this.healthPath = System.getProperty("health.path", "/_admin/stats");
+        String file = System.getProperty("dispatcher.hostsFile");
+        this.hostsFile = file == null ? null : Paths.get(file);
+
+        List<Backend> list = new ArrayList<>();
+        for(String host : defaultHosts)
+            list.add(new Backend(host));
+        snapshot = new Snapshot(list, virtualNodes);
+        reloadHosts();
+
+        long interval = Long.getLong("health.intervalMillis", 2000L);
+        if(interval > 0) {
+            ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "health-check");
+                thread.setDaemon(true);
+                return thread;
+            });
+            checker.scheduleWithFixedDelay(this::checkAll, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /*
+     * picks the web server for a request target and counts the request as outstanding on it. Safe to call from any
+     * thread, every call must be paired with finished()
+     */
+    String route(String target) {
+        Snapshot current = snapshot;
+        long now = System.currentTimeMillis();
+        List<Backend> available = new ArrayList<>(current.list.size());
+        for(Backend backend : current.list) {
+            if(backend.available(now))
+                available.add(backend);
+        }
+        if(available.isEmpty()) // better to try a server that might be down than to refuse everything
+            available = current.list;
+
+        Backend chosen;
+        if(routing.equals("hash"))
+            chosen = byHash(current, available, target);
+        else if(routing.equals("p2c"))
+            chosen = powerOfTwo(available);
+        else
+            chosen = available.get(Math.floorMod(nextHost.getAndIncrement(), available.size()));
+        chosen.outstanding.incrementAndGet();
+        chosen.requests.increment();
+        return chosen.host;
+    }
+
+    /*
+     * records how a routed request went. latencyMillis below zero means there is no meaningful sample,
+     * e.g. a redirect or a client that went away
+     */
+    void finished(String host, long latencyMillis, boolean failed) {
+        Backend backend = snapshot.byHost.get(host);
+        if(backend == null) // removed from the list while the request was running
+            return;
+        backend.outstanding.decrementAndGet();
+        if(failed) {
+            backend.failures.increment();
+            if(backend.consecutiveFailures.incrementAndGet() >= failuresToEject) {
+                backend.consecutiveFailures.set(0);
+                backend.ejectedUntil = System.currentTimeMillis() + ejectMillis;
+                System.err.println("ejecting " + host + " for " + ejectMillis + "ms after repeated failures");
+            }
+        } else {
+            backend.consecutiveFailures.set(0);
+            if(latencyMillis >= 0)
+                backend.recordLatency(latencyMillis);
+        }
+    }
+
+    List<Backend> list() {
+        return snapshot.list;
+    }
+
+    /*
+     * routing stats of every server in the list, as lines for the dispatcher's metrics page
+     */
+    String metrics() {
+        StringBuilder lines = new StringBuilder();
+        long now = System.currentTimeMillis();
+        for(Backend backend : snapshot.list) {
+            String prefix = "backend." + backend.host + ".";
+            lines.append(prefix).append("requests ").append(backend.requests.sum()).append('\n')
+                 .append(prefix).append("failures ").append(backend.failures.sum()).append('\n')
+                 .append(prefix).append("outstanding ").append(backend.outstanding.get()).append('\n')
+                 .append(prefix).append("latencyEwmaMillis ").append(Math.round(backend.ewmaMillis)).append('\n')
+                 .append(prefix).append("healthy ").append(backend.healthy ? 1 : 0).append('\n')
+                 .append(prefix).append("ejected ").append(now < backend.ejectedUntil ? 1 : 0).append('\n');
+        }
+        return lines.toString();
+    }
+
+    // bounded-load consistent hashing, a server above loadFactor times the average load passes the key on
+    private Backend byHash(Snapshot current, List<Backend> available, String target) {
+        int total = 0;
+        for(Backend backend : available)
+            total += backend.outstanding.get();
+        long capacity = (long) Math.ceil(loadFactor * (total + 1) / available.size());
+        Set<Backend> candidates = new HashSet<>(available);
+
+        String host = current.ring.pick(target, h -> {
+            Backend backend = current.byHost.get(h);
+            return candidates.contains(backend) && backend.outstanding.get() < capacity;
+        });
+        if(host == null) // everyone is at capacity, stay with the first available owner
+            host = current.ring.pick(target, h -> candidates.contains(current.byHost.get(h)));
+        return current.byHost.get(host);
+    }
+
+    private Backend powerOfTwo(List<Backend> available) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Backend a = available.get(random.nextInt(available.size()));
+        if(available.size() == 1)
+            return a;
+        Backend b;
+        do {
+            b = available.get(random.nextInt(available.size()));
+        } while(b == a);
+        return a.cost() <= b.cost() ? a : b;
+    }
+
+    private void checkAll() {
+        reloadHosts();
+        for(Backend backend : snapshot.list) {
+            if(probe(backend.host)) {
+                if(!backend.healthy)
+                    System.err.println(backend.host + " is healthy again");
+                backend.healthy = true;
+                backend.failedProbes = 0;
+            } else if(backend.healthy && ++backend.failedProbes >= failuresToMarkDown) {
+                backend.healthy = false;
+                System.err.println(backend.host + " failed its health check, taking it out of rotation");
+            }
+        }
+    }
+
+    // a server is healthy if it answers the health path with a 200 in time
+    private boolean probe(String host) {
+        int colon = host.lastIndexOf(':');
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host.substring(0, colon), Integer.parseInt(host.substring(colon + 1))), 1000);
+            socket.setSoTimeout(1000);
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + healthPath + " HTTP/1.1\r\nHost: " + host + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+            String statusLine = in.readLine();
+            return statusLine != null && statusLine.contains(" 200 ");
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /*
+     * re-reads the hosts file if it changed since the last look. Servers that stay in the list keep their stats
+     */
+    private synchronized void reloadHosts() {
+        if(hostsFile == null)
+            return;
+        try {
+            long modified = Files.getLastModifiedTime(hostsFile).toMillis();
+            if(modified == hostsFileModified)
+                return;
+            List<Backend> list = new ArrayList<>();
+            Snapshot current = snapshot;
+            for(String line : Files.readAllLines(hostsFile)) {
+                String host = line.trim();
+                if(host.isEmpty() || host.startsWith("#") || host.lastIndexOf(':') < 1)
+                    continue;
+                Backend existing = current.byHost.get(host);
+                list.add(existing != null ? existing : new Backend(host));
+            }
+            hostsFileModified = modified;
+            if(list.isEmpty()) {
+                System.err.println(hostsFile + " lists no servers, keeping the current ones");
+                return;
+            }
+            snapshot = new Snapshot(list, virtualNodes);
+            System.out.println("loaded " + list.size() + " web servers from " + hostsFile);
+        } catch (IOException e) {
+            System.err.println("couldn't read " + hostsFile + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * The memcached servers a web server caches in, behind one client. Keys are spread over the servers with ketama
+ * consistent hashing, so the cache holds as much as all of their memory together and adding or losing a server only
+ * moves that server's share of the keys. A server whose connection drops, or whose operations time out several times
+ * in a row, is ejected: its keys go to the next server on the ring while spymemcached keeps reconnecting, and they go
+ * back once it answers again. Values left on a server from before it was ejected are never served stale, every file
+ * is checked against its version key and search pages are keyed by the index version.
+ *
+ * Hot keys, the ones the caller's predicate picks, are also written to copies on other servers, and a get that misses or fails on
+ * a hot key's server is retried on the copies, so a server going down doesn't send all of its traffic for them to
+ * the disk at once. What a copy had is written back under the key, so a server that came back empty refills as it
+ * is read.
+ *
+ * Options, as -D system properties:
+ *   memcached.servers            host:port list separated by commas or spaces, the caller's default otherwise
+ *   memcached.replicas           2 copies of each hot key, counting the first, on as many different servers
+ *   memcached.opTimeoutMillis    1000
+ *   memcached.timeoutThreshold   4 timeouts in a row before a server is ejected
+ *   memcached.reconnectSeconds   30 at most between attempts to reconnect to an ejected server
+ */
+import java.io.IOException;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import net.spy.memcached.*;
+import net.spy.memcached.internal.OperationFuture;
+
+final class CacheCluster {
+    final MemcachedClient client;
+    private final List<InetSocketAddress> servers;
+    private final NodeLocator locator; // a read-only copy, the client makes a new one on every call
+    private final int replicas;
+    private final Predicate<String> hot;
+    private final Set<SocketAddress> down = ConcurrentHashMap.newKeySet();
+    private final LongAdder replicaHits = new LongAdder();
+
+    CacheCluster(String servers, int replicas, Predicate<String> hot, ConnectionFactoryBuilder builder) throws IOException {
+        this.servers = AddrUtil.getAddresses(servers);
+        this.replicas = Math.max(1, Math.min(replicas, this.servers.size()));
+        this.hot = hot;
+        builder.setLocatorType(ConnectionFactoryBuilder.Locator.CONSISTENT)
+               .setHashAlg(DefaultHashAlgorithm.KETAMA_HASH)
+               .setFailureMode(FailureMode.Redistribute)
+               .setInitialObservers(Collections.singleton(new ConnectionObserver() {
+                   @Override
+                   public void connectionEstablished(SocketAddress server, int reconnects) {
+                       if(down.remove(server))
+                           System.out.println("memcached " + server + " is back, re-admitted");
+                   }
+
+                   @Override
+                   public void connectionLost(SocketAddress server) {
+                       if(down.add(server))
+                           System.out.println("memcached " + server + " lost, its keys go to the next server until it is back");
+                   }
+               }));
+        this.client = new MemcachedClient(builder.build(), this.servers);
+        this.locator = client.getNodeLocator();
+    }
+
+    /*
+     * the servers from -Dmemcached.servers, or defaultServers, with hot deciding which keys are replicated
+     */
+    static CacheCluster fromProperties(String defaultServers, Predicate<String> hot) throws IOException {
+        ConnectionFactoryBuilder builder = new ConnectionFactoryBuilder()
+            .setOpTimeout(Long.getLong("memcached.opTimeoutMillis", 1000L))
+            .setTimeoutExceptionThreshold(Integer.getInteger("memcached.timeoutThreshold", 4))
+            .setMaxReconnectDelay(Long.getLong("memcached.reconnectSeconds", 30L))
+            .setDaemon(true)
+            .setTranscoder(new CachedFile.Codec());
+        return new CacheCluster(System.getProperty("memcached.servers", defaultServers),
+                                Integer.getInteger("memcached.replicas", 2), hot, builder);
+    }
+
+    int servers() {
+        return servers.size();
+    }
+
+    int serversDown() {
+        return down.size();
+    }
+
+    long replicaHits() {
+        return replicaHits.sum();
+    }
+
+    /*
+     * stores value under key, and under its copies if it is hot. Returns the set of the first copy
+     */
+    OperationFuture<Boolean> set(String key, Object value) {
+        for(String copy : copies(key))
+            client.set(copy, 0, value);
+        return client.set(key, 0, value);
+    }
+
+    /*
+     * the values of keys found in the cache. Hot keys that missed, or all of them if the get failed, are looked up
+     * again under their copies; the result only fails if that wasn't possible
+     */
+    CompletableFuture<Map<String, Object>> getBulk(Collection<String> keys) {
+        CompletableFuture<Map<String, Object>> result = new CompletableFuture<>();
+        client.asyncGetBulk(keys).addListener(future -> {
+            Map<String, Object> values = new HashMap<>();
+            Exception failure = null;
+            try {
+                putAll(values, future.get(), null);
+            } catch (Exception e) {
+                failure = e;
+            }
+            Map<String, String> copyOf = new HashMap<>();
+            for(String key : keys) {
+                if(!values.containsKey(key)) {
+                    for(String copy : copies(key))
+                        copyOf.put(copy, key);
+                }
+            }
+            if(copyOf.isEmpty()) {
+                if(failure != null)
+                    result.completeExceptionally(failure);
+                else
+                    result.complete(values);
+                return;
+            }
+            Map<String, Object> found = values;
+            Exception primaryFailure = failure;
+            try {
+                client.asyncGetBulk(copyOf.keySet()).addListener(copies -> {
+                    try {
+                        putAll(found, copies.get(), copyOf);
+                        result.complete(found);
+                    } catch (Exception e) {
+                        result.completeExceptionally(primaryFailure != null ? primaryFailure : e);
+                    }
+                });
+            } catch (RuntimeException e) { // e.g. the client's queue is full, the first get is all there is
+                if(primaryFailure != null)
+                    result.completeExceptionally(primaryFailure);
+                else
+                    result.complete(found);
+            }
+        });
+        return result;
+    }
+
+    // adds a bulk get's values to values, or if renamed is given, copies' values under the keys they are copies of
+    private void putAll(Map<String, Object> values, Object fetched, Map<String, String> renamed) {
+        for(Map.Entry<?, ?> value : ((Map<?, ?>) fetched).entrySet()) {
+            String key = (String) value.getKey();
+            if(renamed == null)
+                values.put(key, value.getValue());
+            else if(values.putIfAbsent(renamed.get(key), value.getValue()) == null) {
+                replicaHits.increment();
+                client.set(renamed.get(key), 0, value.getValue());
+            }
+        }
+    }
+
+    CompletableFuture<Object> get(String key) {
+        return getBulk(Collections.singletonList(key)).thenApply(values -> values.get(key));
+    }
+
+    /*
+     * the keys hot keys' copies are stored under, each chosen so its server differs from the key's and the other
+     * copies' while there are enough servers. Not hot keys have none
+     */
+    List<String> copies(String key) {
+        if(replicas < 2 || !hot.test(key))
+            return Collections.emptyList();
+        List<String> copies = new ArrayList<>(replicas - 1);
+        Set<SocketAddress> used = new HashSet<>();
+        used.add(locator.getPrimary(key).getSocketAddress());
+        // the ring decides where each candidate lands, a few tries find distinct servers for any sensible replica count
+        for(int i = 1; copies.size() < replicas - 1 && i <= replicas * 8; i++) {
+            String copy = key + "#copy" + i;
+            if(used.add(locator.getPrimary(copy).getSocketAddress()))
+                copies.add(copy);
+        }
+        return copies;
+    }
+}
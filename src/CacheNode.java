@@ -0,0 +1,408 @@
+/**
+ * A cache server speaking memcached's text protocol, so the project doesn't need a memcached binary installed and
+ * a web server can carry its own cache. Values are kept off the Java heap in a SlabStore, and with a snapshot file
+ * configured they are written to it periodically and on shutdown and loaded back at startup, so a restarted node
+ * comes back warm.
+ *
+ * Runs standalone (java CacheNode [port]) in place of `memcached -p 12250 -I 2m`, or inside WebServer with
+ * -Dmemcached.embedded=true. Each connection gets its own thread, which is plenty for spymemcached: it keeps a
+ * single connection per server and pipelines every operation over it. Replies to pipelined commands are sent
+ * together once no further command is buffered.
+ *
+ * Supported: get, gets, set, add, replace, append, prepend, cas, delete, incr, decr, touch, flush_all, stats,
+ * version, verbosity and quit. The binary protocol isn't, spymemcached only uses it when built with a
+ * BinaryConnectionFactory, which this project doesn't do.
+ *
+ * Options, as -D system properties:
+ *   cachenode.memoryBytes      67108864 off-heap bytes for values (memcached's -m 64)
+ *   cachenode.maxItemBytes     2097152 largest value and slab page size (memcached's -I 2m)
+ *   cachenode.snapshot         file to persist the cache in, none by default
+ *   cachenode.snapshotSeconds  300 between snapshots, 0 to only write one on shutdown
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+final class CacheNode {
+    private static final String VERSION = "1.6.0-memcached-img";
+    private static final int MAX_LINE = 2048;       // a command line other than get's, the longest is a cas with a 250 byte key
+    private static final int MAX_KEY = 250;
+    private static final int FLUSH_AT = 64 * 1024;  // replies buffered before they're written mid-command
+
+    private final SlabStore store;
+    private final Path snapshot;
+    private final long snapshotSeconds;
+    private final long startedAt = System.currentTimeMillis();
+    private final LongAdder getCommands = new LongAdder();
+    private final LongAdder getHits = new LongAdder();
+    private final LongAdder getMisses = new LongAdder();
+    private final LongAdder setCommands = new LongAdder();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final LongAdder totalConnections = new LongAdder();
+
+    CacheNode(SlabStore store, Path snapshot, long snapshotSeconds) {
+        this.store = store;
+        this.snapshot = snapshot;
+        this.snapshotSeconds = snapshotSeconds;
+    }
+
+    static CacheNode fromProperties() {
+        String snapshot = System.getProperty("cachenode.snapshot");
+        return new CacheNode(new SlabStore(Integer.getInteger("cachenode.maxItemBytes", 2 * 1024 * 1024),
+                                           Long.getLong("cachenode.memoryBytes", 64L * 1024 * 1024)),
+                             snapshot == null ? null : Paths.get(snapshot),
+                             Long.getLong("cachenode.snapshotSeconds", 300L));
+    }
+
+    public static void main(String args[]) throws Exception {
+        int port = 12250;
+        if(args.length > 0) {
+            try {
+                port = Integer.parseInt(args[0]);
+                if(port < 1024 || port > 65535) throw new NumberFormatException();
+            } catch (NumberFormatException e) {
+                System.err.println("Usage: java CacheNode [port]");
+                System.exit(1);
+            }
+        }
+        fromProperties().start(port);
+        Thread.currentThread().join(); // the node runs on its own threads
+    }
+
+    SlabStore store() {
+        return store;
+    }
+
+    /*
+     * loads the snapshot, if there is one, and starts accepting connections on port in the background
+     */
+    void start(int port) throws IOException {
+        if(snapshot != null && Files.exists(snapshot)) {
+            long start = System.currentTimeMillis();
+            try {
+                long loaded = store.load(snapshot);
+                System.out.println("cache node: loaded " + loaded + " items from " + snapshot + " in "
+                                   + (System.currentTimeMillis() - start) + "ms");
+            } catch (IOException | RuntimeException e) { // starting cold is better than not starting
+                System.err.println("cache node: couldn't load " + snapshot + ", starting empty: " + e);
+            }
+        }
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        daemon(() -> accept(server), "cachenode-accept").start();
+        System.out.println("cache node listening on port " + port + " (" + store.memoryLimit() / (1024 * 1024) + "MB)");
+
+        if(snapshot != null) {
+            if(snapshotSeconds > 0) {
+                ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "cachenode-snapshot"));
+                snapshots.scheduleWithFixedDelay(this::writeSnapshot, snapshotSeconds, snapshotSeconds, TimeUnit.SECONDS);
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(this::writeSnapshot));
+        }
+    }
+
+    private void writeSnapshot() {
+        long start = System.currentTimeMillis();
+        try {
+            long written = store.snapshot(snapshot);
+            System.out.println("cache node: wrote " + written + " items to " + snapshot + " in " + (System.currentTimeMillis() - start) + "ms");
+        } catch (IOException | RuntimeException e) {
+            System.err.println("cache node: couldn't write " + snapshot + ": " + e);
+        }
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private void accept(ServerSocketChannel server) {
+        while(true) {
+            try {
+                SocketChannel channel = server.accept();
+                channel.socket().setTcpNoDelay(true);
+                daemon(new Connection(channel)::serve, "cachenode-connection").start();
+            } catch (IOException e) {
+                System.err.println("cache node: accept failed: " + e);
+            }
+        }
+    }
+
+    /*
+     * one client connection, served by its own thread. Replies are gathered in a direct buffer and written once no
+     * further command is waiting; the buffer only ever grows while the store's lock is held and is written out after
+     */
+    private final class Connection implements SlabStore.Output {
+        final SocketChannel channel;
+        ByteBuffer in = ByteBuffer.allocate(16 * 1024); // kept in write mode, the next command starts at 0
+        ByteBuffer out = ByteBuffer.allocateDirect(FLUSH_AT);
+        int scanned = 0; // bytes of the first line already searched for its end
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public ByteBuffer reserve(int bytes) {
+            if(out.remaining() < bytes) {
+                ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(out.capacity() * 2, out.position() + bytes));
+                out.flip();
+                bigger.put(out);
+                out = bigger;
+            }
+            return out;
+        }
+
+        void reply(String line) {
+            byte[] bytes = (line + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            reserve(bytes.length).put(bytes);
+        }
+
+        void flush() throws IOException {
+            out.flip();
+            while(out.hasRemaining())
+                channel.write(out);
+            out.clear();
+        }
+
+        void serve() {
+            connections.incrementAndGet();
+            totalConnections.increment();
+            try {
+                while(true) {
+                    int end = lineEnd();
+                    if(end < 0) {
+                        // a multi-get has a key per word and no limit, like memcached's; only other lines are bounded
+                        if(in.position() >= MAX_LINE && !retrieval()) {
+                            reply("CLIENT_ERROR line too long");
+                            flush();
+                            return;
+                        }
+                        if(!in.hasRemaining())
+                            grow(in.capacity() * 2);
+                        if(out.position() > 0)
+                            flush();
+                        if(channel.read(in) == -1)
+                            return;
+                        if((in.get(0) & 0xff) == 0x80) {
+                            System.err.println("cache node: a client spoke the binary protocol, which isn't supported");
+                            return;
+                        }
+                        continue;
+                    }
+                    String line = new String(in.array(), 0, end, StandardCharsets.ISO_8859_1);
+                    if(line.endsWith("\r"))
+                        line = line.substring(0, line.length() - 1);
+                    int next;
+                    try {
+                        next = command(line.trim().split(" +"), end + 1);
+                    } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                        reply("CLIENT_ERROR bad command line format");
+                        next = end + 1;
+                    }
+                    if(next < 0) {
+                        flush();
+                        return;
+                    }
+                    in.flip();
+                    in.position(next);
+                    in.compact();
+                    scanned = 0;
+                }
+            } catch (IOException e) {
+                // client went away
+            } finally {
+                connections.decrementAndGet();
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // nothing left to clean up
+                }
+            }
+        }
+
+        // index of the LF ending the first line in the buffer, or -1 if it isn't complete yet
+        private int lineEnd() {
+            for(; scanned < in.position(); scanned++) {
+                if(in.get(scanned) == '\n')
+                    return scanned;
+            }
+            return -1;
+        }
+
+        // whether the incomplete line in the buffer is a get or gets
+        private boolean retrieval() {
+            String command = new String(in.array(), 0, Math.min(in.position(), 5), StandardCharsets.ISO_8859_1);
+            return command.startsWith("get ") || command.startsWith("gets ");
+        }
+
+        // reads until the buffer holds at least bytes, growing it if it can't. false if the client closed first
+        private boolean fill(int bytes) throws IOException {
+            grow(bytes);
+            while(in.position() < bytes) {
+                if(channel.read(in) == -1)
+                    return false;
+            }
+            return true;
+        }
+
+        // makes room in the buffer for at least bytes, keeping what it holds
+        private void grow(int bytes) {
+            if(in.capacity() < bytes) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(bytes, in.capacity() * 2));
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+        }
+
+        // throws away bytes of input starting at from, returning false if the client closed first
+        private boolean skip(int from, long bytes) throws IOException {
+            long buffered = in.position() - from;
+            if(buffered >= bytes) {
+                in.flip();
+                in.position(from + (int) bytes);
+                in.compact();
+                return true;
+            }
+            bytes -= buffered;
+            in.clear();
+            while(bytes > 0) {
+                in.limit((int) Math.min(in.capacity(), bytes));
+                int read = channel.read(in);
+                if(read == -1)
+                    return false;
+                bytes -= read;
+                in.clear();
+            }
+            return true;
+        }
+
+        /*
+         * runs one command whose line ends just before start, returning where the next command starts in the buffer,
+         * or -1 to close the connection. Storage commands read their data block into the buffer first
+         */
+        private int command(String[] words, int start) throws IOException {
+            switch(words[0]) {
+                case "get":
+                case "gets":
+                    for(int i = 1; i < words.length; i++) {
+                        getCommands.increment();
+                        if(store.get(words[i], words[0].equals("gets"), this))
+                            getHits.increment();
+                        else
+                            getMisses.increment();
+                        if(out.position() >= FLUSH_AT) // big multi-gets go out as they're read
+                            flush();
+                    }
+                    reply("END");
+                    return start;
+                case "set":
+                case "add":
+                case "replace":
+                case "append":
+                case "prepend":
+                case "cas": {
+                    String key = words[1];
+                    int flags = (int) Long.parseLong(words[2]); // unsigned 32 bit
+                    long exptime = Long.parseLong(words[3]);
+                    int length = Integer.parseInt(words[4]);
+                    long casUnique = words[0].equals("cas") ? Long.parseLong(words[5]) : 0;
+                    boolean noreply = words[words.length - 1].equals("noreply");
+                    if(length < 0 || key.length() > MAX_KEY) {
+                        reply("CLIENT_ERROR bad command line format");
+                        return -1; // there's no telling where the data ends
+                    }
+                    if(length > store.maxItemBytes()) {
+                        if(!skip(start, length + 2L))
+                            return -1;
+                        reply("SERVER_ERROR object too large for cache");
+                        return 0; // skip() already dropped the command
+                    }
+                    if(!fill(start + length + 2))
+                        return -1;
+                    if(in.get(start + length) != '\r' || in.get(start + length + 1) != '\n') {
+                        reply("CLIENT_ERROR bad data chunk");
+                        return -1;
+                    }
+                    setCommands.increment();
+                    String result = store.store(words[0], key, flags, exptime, casUnique, ByteBuffer.wrap(in.array(), start, length));
+                    if(!noreply)
+                        reply(result);
+                    return start + length + 2;
+                }
+                case "delete": {
+                    boolean deleted = store.delete(words[1]);
+                    if(!words[words.length - 1].equals("noreply"))
+                        reply(deleted ? "DELETED" : "NOT_FOUND");
+                    return start;
+                }
+                case "incr":
+                case "decr": {
+                    String result = store.incr(words[1], Long.parseUnsignedLong(words[2]), words[0].equals("decr"));
+                    if(!words[words.length - 1].equals("noreply"))
+                        reply(result);
+                    return start;
+                }
+                case "touch": {
+                    boolean touched = store.touch(words[1], Long.parseLong(words[2]));
+                    if(!words[words.length - 1].equals("noreply"))
+                        reply(touched ? "TOUCHED" : "NOT_FOUND");
+                    return start;
+                }
+                case "flush_all":
+                    store.flushAll(words.length > 1 && !words[1].equals("noreply") ? Long.parseLong(words[1]) : 0);
+                    if(!words[words.length - 1].equals("noreply"))
+                        reply("OK");
+                    return start;
+                case "stats":
+                    stats(this);
+                    return start;
+                case "version":
+                    reply("VERSION " + VERSION);
+                    return start;
+                case "verbosity":
+                    if(!words[words.length - 1].equals("noreply"))
+                        reply("OK");
+                    return start;
+                case "quit":
+                    return -1;
+                default:
+                    reply("ERROR");
+                    return start;
+            }
+        }
+    }
+
+    private void stats(Connection connection) {
+        long now = System.currentTimeMillis();
+        String[][] stats = {
+            { "pid", String.valueOf(ProcessHandle.current().pid()) },
+            { "uptime", String.valueOf((now - startedAt) / 1000) },
+            { "time", String.valueOf(now / 1000) },
+            { "version", VERSION },
+            { "curr_connections", String.valueOf(connections.get()) },
+            { "total_connections", String.valueOf(totalConnections.sum()) },
+            { "cmd_get", String.valueOf(getCommands.sum()) },
+            { "cmd_set", String.valueOf(setCommands.sum()) },
+            { "get_hits", String.valueOf(getHits.sum()) },
+            { "get_misses", String.valueOf(getMisses.sum()) },
+            { "curr_items", String.valueOf(store.size()) },
+            { "total_items", String.valueOf(store.totalItems()) },
+            { "bytes", String.valueOf(store.bytes()) },
+            { "evictions", String.valueOf(store.evictions()) },
+            { "limit_maxbytes", String.valueOf(store.memoryLimit()) },
+            { "item_size_max", String.valueOf(store.maxItemBytes()) },
+        };
+        for(String[] stat : stats)
+            connection.reply("STAT " + stat[0] + " " + stat[1]);
+        connection.reply("END");
+    }
+}
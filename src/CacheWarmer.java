@@ -0,0 +1,145 @@
+/**
+ * Loads the files the server hands out into memcached at startup, so the first requests after a deploy or a
+ * memcached restart don't all miss at once. Files are read in parallel and stored with async sets, with a bound on
+ * how many files' sets are in flight. Each batch is checked first with one multi-get of the small version entries
+ * stored next to the files, and files memcached already holds the current version of are skipped without
+ * transferring their bytes.
+ * Files too large for one value are handed to ChunkedStore, files too large to cache at all are left alone.
+ */
+import net.spy.memcached.*;
+import net.spy.memcached.internal.OperationFuture;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+final class CacheWarmer {
+    private final MemcachedClient client;
+    private final ChunkedStore chunkedStore;
+    private final int threads;
+    private final int batchSize;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final AtomicInteger stored = new AtomicInteger();
+    private final AtomicInteger chunked = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+
+    CacheWarmer(MemcachedClient client, ChunkedStore chunkedStore, int threads, int batchSize, int maxInFlight) {
+        this.client = client;
+        this.chunkedStore = chunkedStore;
+        this.threads = threads;
+        this.batchSize = batchSize;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /*
+     * warms the files directly inside each of directories, returning once every set has completed
+     */
+    void run(String... directories) {
+        long start = System.currentTimeMillis();
+        List<File> files = new ArrayList<>();
+        for(String directory : directories) {
+            File[] listed = new File(directory).listFiles();
+            if(listed == null) {
+                System.err.println("cache warm-up couldn't list " + directory);
+                continue;
+            }
+            for(File file : listed) {
+                if(file.isFile() && WebServer.HttpRequest.knownContentType(file.getName()) != null
+                   && file.length() <= WebServer.MAX_CHUNKED_BYTES)
+                    files.add(file);
+            }
+        }
+        System.out.println("cache warm-up: checking " + files.size() + " files");
+
+        ExecutorService readers = Executors.newFixedThreadPool(threads);
+        long lastReport = System.currentTimeMillis();
+        for(int first = 0; first < files.size(); first += batchSize) {
+            warm(files.subList(first, Math.min(files.size(), first + batchSize)), readers);
+            if(System.currentTimeMillis() - lastReport >= 1000) {
+                lastReport = System.currentTimeMillis();
+                report(first + batchSize, files.size());
+            }
+        }
+        readers.shutdown();
+        inFlight.acquireUninterruptibly(maxInFlight); // every file's sets are done once all permits are back
+        inFlight.release(maxInFlight);
+        System.out.println("cache warm-up done in " + (System.currentTimeMillis() - start) + "ms: " + stored + " stored ("
+                           + bytes.get() / 1024 + "KB), " + chunked + " being stored in chunks, " + skipped
+                           + " already cached, " + failed + " failed");
+    }
+
+    private void warm(List<File> batch, ExecutorService readers) {
+        List<String> keys = new ArrayList<>();
+        for(File file : batch) {
+            if(file.length() <= WebServer.MAX_CACHED_BYTES)
+                keys.add(WebServer.etagKey(file.getPath()));
+        }
+        Map<String, Object> versions;
+        try {
+            versions = client.getBulk(keys);
+        } catch (RuntimeException e) { // can't tell what's there, storing again is harmless
+            System.err.println("cache warm-up multi-get failed: " + e);
+            versions = Collections.emptyMap();
+        }
+
+        for(File file : batch) {
+            String path = file.getPath();
+            long lastModified = file.lastModified();
+            long length = file.length();
+            if(length > WebServer.MAX_CACHED_BYTES) {
+                if(chunkedStore.lookup(path, lastModified, length).join()) {
+                    skipped.incrementAndGet();
+                } else {
+                    chunked.incrementAndGet();
+                    chunkedStore.fill(path, file); // fills run on the disk pool, a few files at a time
+                }
+                continue;
+            }
+
+            Object version = versions.get(WebServer.etagKey(path));
+            String expected = lastModified + " " + length + " ";
+            if(version instanceof String && ((String) version).startsWith(expected)) {
+                WebServer.validators.record(path, lastModified, length, ((String) version).substring(expected.length()));
+                skipped.incrementAndGet();
+                continue;
+            }
+
+            inFlight.acquireUninterruptibly();
+            readers.execute(() -> store(path, file, lastModified));
+        }
+    }
+
+    // reads and stores one file, its permit is given back when the last of its sets completes
+    private void store(String path, File file, long lastModified) {
+        List<OperationFuture<Boolean>> sets = new ArrayList<>();
+        try {
+            byte[] value = Files.readAllBytes(file.toPath());
+            WebServer.storeFile(path, null, value, lastModified, sets);
+            bytes.addAndGet(value.length);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("cache warm-up couldn't store " + path + ": " + e);
+            failed.incrementAndGet();
+            inFlight.release();
+            return;
+        }
+        AtomicInteger remaining = new AtomicInteger(sets.size());
+        for(OperationFuture<Boolean> set : sets) {
+            set.addListener(future -> {
+                if(remaining.decrementAndGet() == 0) {
+                    stored.incrementAndGet();
+                    inFlight.release();
+                }
+            });
+        }
+    }
+
+    private void report(int checked, int total) {
+        System.out.println("cache warm-up: " + Math.min(checked, total) + "/" + total + " files checked, " + stored
+                           + " stored, " + skipped + " already cached, " + inFlight.availablePermits() + "/" + maxInFlight + " slots free");
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * A file, one encoding of it or a thumbnail as it is kept in the cache: a small fixed header with everything the
+ * response headers need, followed by the body. A cache hit can be answered without looking at the file name again or
+ * hashing anything, and without copying the body, which is sent as a view of the bytes memcached returned.
+ *
+ *   byte    format, FORMAT
+ *   byte    content type, an index into CONTENT_TYPES
+ *   byte    encoding, 0 for identity, otherwise 1 + an index into Encodings.SUPPORTED
+ *   byte    length of the ETag
+ *   long    modification time of the file, in milliseconds
+ *   long    length of the file, which is the body's only for identity
+ *   bytes   ETag of the file's identity bytes, quotes included
+ *   bytes   body
+ *
+ * Codec stores these under their own memcached flag and leaves every other value to spymemcached's usual
+ * SerializingTranscoder, so search pages, chunks and manifests are stored as they were.
+ */
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.*;
+
+final class CachedFile {
+    private static final byte FORMAT = 1;
+    private static final int HEADER_BYTES = 20;
+    // above the bits SerializingTranscoder uses, so values it stored are never taken for these
+    private static final int FLAG = 1 << 16;
+    // every type contentType() and Thumbnails give, only ever appended to so stored values keep their meaning.
+    // null is a file of unknown type, sent without a Content-type
+    private static final String[] CONTENT_TYPES = { null, "text/html; charset=UTF-8", "text/css; charset=UTF-8",
+        "text/javascript; charset=UTF-8", "image/gif", "image/jpeg", "image/png", "application/pdf" };
+
+    final byte[] data;
+    final String contentType;
+    final String encoding;  // null for identity
+    final long lastModified;
+    final long length;
+    final String etag;
+    final int bodyOffset;
+
+    private CachedFile(byte[] data, String contentType, String encoding, long lastModified, long length, String etag) {
+        this.data = data;
+        this.contentType = contentType;
+        this.encoding = encoding;
+        this.lastModified = lastModified;
+        this.length = length;
+        this.etag = etag;
+        this.bodyOffset = HEADER_BYTES + etag.length();
+    }
+
+    /*
+     * body in encoding (null for identity) of the version of a file given by lastModified, length and etag
+     */
+    static CachedFile of(String contentType, String encoding, long lastModified, long length, String etag, byte[] body) {
+        byte[] tag = etag.getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer data = ByteBuffer.allocate(HEADER_BYTES + tag.length + body.length);
+        data.put(FORMAT).put((byte) indexOf(CONTENT_TYPES, contentType)).put((byte) (indexOf(Encodings.SUPPORTED, encoding) + 1))
+            .put((byte) tag.length).putLong(lastModified).putLong(length).put(tag).put(body);
+        return new CachedFile(data.array(), contentType, encoding, lastModified, length, etag);
+    }
+
+    /*
+     * reads the header of data, which stays the body's backing array. null if data isn't in this format
+     */
+    static CachedFile decode(byte[] data) {
+        if(data.length < HEADER_BYTES || data[0] != FORMAT)
+            return null;
+        int type = data[1] & 0xff;
+        int encoding = data[2] & 0xff;
+        int tagLength = data[3] & 0xff;
+        if(type >= CONTENT_TYPES.length || encoding > Encodings.SUPPORTED.length || data.length < HEADER_BYTES + tagLength)
+            return null;
+        ByteBuffer header = ByteBuffer.wrap(data);
+        return new CachedFile(data, CONTENT_TYPES[type], encoding == 0 ? null : Encodings.SUPPORTED[encoding - 1], header.getLong(4),
+                              header.getLong(12), new String(data, HEADER_BYTES, tagLength, StandardCharsets.ISO_8859_1));
+    }
+
+    int bodyLength() {
+        return data.length - bodyOffset;
+    }
+
+    private static int indexOf(String[] values, String value) {
+        for(int i = 0; i < values.length; i++) {
+            if(value == null ? values[i] == null : value.equals(values[i]))
+                return i;
+        }
+        if(value == null)
+            return -1;
+        throw new IllegalArgumentException(value + " has no id in the cache format");
+    }
+
+    /*
+     * the client's transcoder: CachedFiles go to memcached as their bytes, never compressed since their bodies
+     * already are or are pictures, everything else the usual way
+     */
+    static final class Codec implements Transcoder<Object> {
+        private final SerializingTranscoder others = new SerializingTranscoder();
+
+        @Override
+        public boolean asyncDecode(CachedData data) {
+            return (data.getFlags() & FLAG) == 0 && others.asyncDecode(data);
+        }
+
+        @Override
+        public CachedData encode(Object value) {
+            if(value instanceof CachedFile)
+                return new CachedData(FLAG, ((CachedFile) value).data, getMaxSize());
+            return others.encode(value);
+        }
+
+        @Override
+        public Object decode(CachedData data) {
+            if((data.getFlags() & FLAG) != 0)
+                return CachedFile.decode(data.getData());
+            return others.decode(data);
+        }
+
+        @Override
+        public int getMaxSize() {
+            return others.getMaxSize();
+        }
+    }
+}
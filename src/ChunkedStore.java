@@ -0,0 +1,227 @@
+/**
+ * Stores files that are too large for a single memcached value as fixed-size chunks under derived keys that name
+ * the version of the file they were cut from ("key#length.mtime.chunkSize#0", ...#1, ...), plus a small manifest
+ * under "key#manifest" describing the version that was stored. A reader only ever asks for the chunks of the version
+ * the manifest it matched describes, so a file rewritten while it is being read or stored can't mix old and new
+ * chunks; the old version's chunks are left for memcached to evict.
+ * Reads fetch the chunks with multi-gets, a few chunks per get, all issued up front. The caller gets one future per
+ * group in file order, so the first chunks can go out to the client while the later ones are still on the wire.
+ * A read can cover any byte range of the file, only the chunks that overlap it are fetched.
+ * A chunk that memcached has evicted in the meantime is read back from its region of the file.
+ * The manifest also carries the ETag hashed from the chunks as they were stored.
+ */
+import net.spy.memcached.*;
+import net.spy.memcached.internal.BulkGetCompletionListener;
+import net.spy.memcached.internal.GetCompletionListener;
+import net.spy.memcached.internal.OperationFuture;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+final class ChunkedStore {
+    private final MemcachedClient client;
+    private final int chunkSize;
+    private final int chunksPerGet;
+    private final Executor disk;
+    private final Validators validators;
+    // keys currently being written, so concurrent misses on the same large file fill it only once
+    private final Set<String> filling = ConcurrentHashMap.newKeySet();
+    private final LongAdder filled = new LongAdder();
+    private final LongAdder chunksStored = new LongAdder();
+
+    ChunkedStore(MemcachedClient client, int chunkSize, int chunksPerGet, Executor disk, Validators validators) {
+        this.client = client;
+        this.chunkSize = chunkSize;
+        this.chunksPerGet = chunksPerGet;
+        this.disk = disk;
+        this.validators = validators;
+    }
+
+    /*
+     * looks up the manifest for key. Completes with true if memcached holds the version of the file given by
+     * lastModified and length and fetch() can be used, or with false if it doesn't, in which case the caller should
+     * serve the file itself and fill(). On a match the file's ETag is recorded in validators
+     */
+    CompletableFuture<Boolean> lookup(String key, long lastModified, long length) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        GetCompletionListener onManifest = future -> {
+            Object manifest = null;
+            try {
+                manifest = future.get();
+            } catch (Exception e) { // memcached is down or timed out, the disk still has the file
+                System.err.println("memcached get failed for " + key + ": " + e);
+            }
+            String expected = manifest(length, lastModified) + " ";
+            if(manifest instanceof String && ((String) manifest).startsWith(expected)) {
+                validators.record(key, lastModified, length, ((String) manifest).substring(expected.length()));
+                result.complete(true);
+            } else {
+                result.complete(false);
+            }
+        };
+        try {
+            client.asyncGet(manifestKey(key)).addListener(onManifest);
+        } catch (RuntimeException e) {
+            System.err.println("memcached get failed for " + key + ": " + e);
+            result.complete(false);
+        }
+        return result;
+    }
+
+    /*
+     * stores file in the background unless another request is already doing so. The manifest is written only after
+     * every chunk has been stored, so readers never see a manifest for chunks that were never written
+     */
+    void fill(String key, File file) {
+        if(!filling.add(key))
+            return;
+        disk.execute(() -> {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long lastModified = file.lastModified();
+                long length = channel.size();
+                MessageDigest digest = Validators.digest();
+                List<OperationFuture<Boolean>> sets = new ArrayList<>();
+                for(int i = 0; i < chunkCount(length); i++) {
+                    byte[] chunk = readChunk(channel, i, length);
+                    digest.update(chunk);
+                    sets.add(client.set(chunkKey(key, length, lastModified, i), 0, chunk));
+                }
+                for(OperationFuture<Boolean> set : sets) {
+                    if(!set.get())
+                        return; // a chunk was rejected, don't advertise a partial copy
+                }
+                if(file.lastModified() != lastModified || file.length() != length)
+                    return; // changed while being read, the chunks may hold parts of both versions
+                String etag = Validators.etag(digest);
+                validators.record(key, lastModified, length, etag);
+                client.set(manifestKey(key), 0, manifest(length, lastModified) + " " + etag);
+                filled.increment();
+                chunksStored.add(sets.size());
+            } catch (Exception e) {
+                System.err.println("couldn't store " + key + " in chunks: " + e);
+            } finally {
+                filling.remove(key);
+            }
+        });
+    }
+
+    // files stored in chunks so far, and the chunks they took
+    long filled() {
+        return filled.sum();
+    }
+
+    long chunksStored() {
+        return chunksStored.sum();
+    }
+
+    /*
+     * bytes [from, to) of the version of file, given by lastModified and length, that lookup() found, as ordered
+     * groups of chunks. The buffers of the first and last chunk are positioned and limited to the range, nothing is
+     * copied
+     */
+    List<CompletableFuture<ByteBuffer[]>> fetch(String key, File file, long lastModified, long length, long from, long to) {
+        int firstChunk = (int) (from / chunkSize);
+        int lastChunk = (int) ((to - 1) / chunkSize);
+        List<CompletableFuture<ByteBuffer[]>> groups = new ArrayList<>();
+        for(int first = firstChunk; first <= lastChunk; first += chunksPerGet) {
+            int start = first;
+            int end = Math.min(lastChunk + 1, first + chunksPerGet);
+            List<String> keys = new ArrayList<>();
+            for(int i = start; i < end; i++)
+                keys.add(chunkKey(key, length, lastModified, i));
+
+            CompletableFuture<ByteBuffer[]> group = new CompletableFuture<>();
+            BulkGetCompletionListener onChunks = future -> {
+                Map<?, ?> values = Collections.emptyMap();
+                try {
+                    values = (Map<?, ?>) future.get();
+                } catch (Exception e) {
+                    System.err.println("memcached get failed for " + key + ": " + e);
+                }
+                ByteBuffer[] buffers = new ByteBuffer[end - start];
+                List<Integer> missing = new ArrayList<>();
+                for(int i = start; i < end; i++) {
+                    Object value = values.get(chunkKey(key, length, lastModified, i));
+                    if(value instanceof byte[])
+                        buffers[i - start] = ByteBuffer.wrap((byte[]) value);
+                    else
+                        missing.add(i);
+                }
+                if(missing.isEmpty())
+                    group.complete(buffers);
+                else
+                    disk.execute(() -> readMissing(file, lastModified, length, start, missing, buffers, group));
+            };
+            try {
+                client.asyncGetBulk(keys).addListener(onChunks);
+            } catch (RuntimeException e) {
+                disk.execute(() -> {
+                    List<Integer> all = new ArrayList<>();
+                    for(int i = start; i < end; i++)
+                        all.add(i);
+                    readMissing(file, lastModified, length, start, all, new ByteBuffer[end - start], group);
+                });
+            }
+            groups.add(group.thenApply(buffers -> {
+                for(int i = start; i < end; i++) {
+                    long offset = (long) i * chunkSize;
+                    if(i == lastChunk)
+                        buffers[i - start].limit((int) (to - offset));
+                    if(i == firstChunk)
+                        buffers[i - start].position((int) (from - offset));
+                }
+                return buffers;
+            }));
+        }
+        return groups;
+    }
+
+    // evicted chunks are read from the file on disk, as long as it still has the version the manifest described
+    private void readMissing(File file, long lastModified, long length, int start, List<Integer> missing,
+                             ByteBuffer[] buffers, CompletableFuture<ByteBuffer[]> group) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for(int i : missing)
+                buffers[i - start] = ByteBuffer.wrap(readChunk(channel, i, length));
+            if(file.lastModified() != lastModified || channel.size() != length)
+                throw new IOException(file + " changed while being sent");
+            group.complete(buffers);
+        } catch (IOException e) {
+            group.completeExceptionally(e);
+        }
+    }
+
+    private byte[] readChunk(FileChannel channel, int index, long length) throws IOException {
+        long position = (long) index * chunkSize;
+        ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(chunkSize, length - position));
+        while(chunk.hasRemaining()) {
+            if(channel.read(chunk, position + chunk.position()) < 0)
+                throw new EOFException("file shrank while being read");
+        }
+        return chunk.array();
+    }
+
+    private int chunkCount(long length) {
+        return (int) ((length + chunkSize - 1) / chunkSize);
+    }
+
+    // a manifest only matches the exact version of the file it was written for, and the chunk size it was split with.
+    // the stored manifest has the ETag after this
+    private String manifest(long length, long lastModified) {
+        return length + " " + lastModified + " " + chunkSize;
+    }
+
+    private static String manifestKey(String key) {
+        return key + "#manifest";
+    }
+
+    // the chunk's key names the version of the file it belongs to, the same one the manifest describes
+    private String chunkKey(String key, long length, long lastModified, int index) {
+        return key + "#" + length + "." + lastModified + "." + chunkSize + "#" + index;
+    }
+}
@@ -2,20 +2,54 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.nio.charset.StandardCharsets;
 import java.lang.NumberFormatException;
 
 public final class Dispatcher {
+    static final String[] HOSTS = {"oak.ad.ilstu.edu:12430",
+                                   "maple.ad.ilstu.edu:12430",
+                                   "walnut.ad.ilstu.edu:12430",
+                                   "pine.ad.ilstu.edu:12430"};
+    // "redirect" (default) sends clients a page pointing at a web server, "proxy" forwards their requests itself
+    static final String MODE = System.getProperty("dispatcher.mode", "redirect");
+    static final UpstreamPool upstreams = new UpstreamPool(Integer.getInteger("proxy.maxIdlePerHost", 32),
+                                                           Long.getLong("proxy.upstreamIdleMillis", 4000L), // below the web servers' 5s keep-alive
+                                                           Integer.getInteger("proxy.connectTimeoutMillis", 1000),
+                                                           Integer.getInteger("proxy.readTimeoutMillis", 10000));
+    // "roundrobin" (default), "hash" to send each path to the same web server, or "p2c" to prefer the least loaded
+    // and fastest of two random servers. HOSTS is used unless -Ddispatcher.hostsFile names a list to load instead
+    static final Backends backends = new Backends(HOSTS, System.getProperty("dispatcher.routing", "roundrobin"));
+
+    // answered by the dispatcher itself instead of being routed
+    static final String METRICS_PATH = "/_admin/metrics";
+    // counters and per-stage latencies (in microseconds) for the metrics path
+    static final Metrics metrics = new Metrics();
+    static final Metrics.Histogram parseTime = metrics.histogram("stage.parse");
+    static final Metrics.Histogram routeTime = metrics.histogram("stage.route");
+    static final Metrics.Histogram upstreamTime = metrics.histogram("stage.upstream");
+    static final LongAdder bytesServed = metrics.counter("bytes.served");
+    // one line per request, written in batches by a background thread. -Dlog.file=off turns it off
+    static final AccessLog accessLog = AccessLog.fromProperties(WebServer.LOGS_DIR + "/dispatcher-access.log");
+    // bounded connection queue, queue deadline, connections per client address and, in proxy mode, an adaptive
+    // limit on requests being forwarded. See AdmissionControl
+    static final AdmissionControl admission = new AdmissionControl(metrics, 32);
+
     public static void main(String args[]) {
         
         // smaller servers probably have no more than 16 physical cores, note that increasing this
         // beyond the physical core count shouldn't increase performance.
         final short THREAD_POOL_SIZE = 30;
-        final String[] HOSTS = {"oak.ad.ilstu.edu:12430",
-                                "maple.ad.ilstu.edu:12430",
-                                "walnut.ad.ilstu.edu:12430",
-                                "pine.ad.ilstu.edu:12430"};
         int port = 0;
-        ExecutorService pool = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
+        // "pool" (default) or "virtual" for a virtual thread per connection, see ThreadPools
+        ExecutorService pool = ThreadPools.forEngine(System.getProperty("server.engine", "pool"), THREAD_POOL_SIZE,
+                                                     Integer.getInteger("server.queueSize", 256));
+        metrics.gauge("pool.queue", () -> ThreadPools.queueDepth(pool));
+        metrics.gauge("upstream.backends", () -> backends.list().size());
+        if(accessLog != null) {
+            metrics.gauge("log.written", accessLog::written);
+            metrics.gauge("log.dropped", accessLog::dropped);
+        }
 
         // validate parameters
         if(args.length != 1) {
@@ -32,15 +66,12 @@ public final class Dispatcher {
         
         try {
             ServerSocket welcomeSocket = new ServerSocket(port); 
-            System.out.println("\nListening for connections on port " + port + "..\n");
-            int index = 0;
+            System.out.println("\nListening for connections on port " + port + " (" + MODE + ")..\n");
             while(true) {
-                String redirect = HOSTS[index];
-                index++;
-                if(index == 4) index = 0;
                 try {
-                    Callable<Void> request = new Redirect(welcomeSocket.accept(), redirect);
-                    pool.submit(request);
+                    Socket client = welcomeSocket.accept();
+                    Callable<Void> request = MODE.equals("proxy") ? new Proxy(client) : new Redirect(client);
+                    admission.submit(pool, client, request);
                 } catch (IOException e) {
                     System.err.println("Error while creating thread");
                 }
@@ -51,6 +82,22 @@ public final class Dispatcher {
     
     }
 
+    /*
+     * the metrics page: the dispatcher's own counters followed by each web server's routing stats
+     */
+    static byte[] metricsResponse(boolean keepAlive) {
+        byte[] body = (metrics.render() + backends.metrics()).getBytes(StandardCharsets.UTF_8);
+        metrics.status("HTTP/1.1 200 OK");
+        String head = "HTTP/1.1 200 OK\r\n" +
+                      "Content-type: text/plain; charset=UTF-8\r\n" +
+                      "Content-Length: " + body.length + "\r\n" +
+                      (keepAlive ? "Connection: keep-alive" : "Connection: close") + "\r\n\r\n";
+        byte[] response = Arrays.copyOf(head.getBytes(StandardCharsets.ISO_8859_1), head.length() + body.length);
+        System.arraycopy(body, 0, response, head.length(), body.length);
+        bytesServed.add(response.length);
+        return response;
+    }
+
     /**
      * Encapsulates a single HTTP request sent by a browser and sends back an appropriate response. Can handle following file extensions: .txt .css .gif .jpg .png
      * Implementing Callable<Void> allows this to be run multi-threaded
@@ -62,9 +109,8 @@ public final class Dispatcher {
         private Socket socket;
         private String redirect;
     
-        public Redirect(Socket socket, String redirect) { 
+        public Redirect(Socket socket) { 
             this.socket = socket;
-            this.redirect = redirect;
         }
     
         /**
@@ -78,18 +124,13 @@ public final class Dispatcher {
                 DataOutputStream outToClient = new DataOutputStream(socket.getOutputStream());
                 
                 String requestLine = inFromClient.readLine();
+                long start = System.nanoTime();
 
-                // synchronized ensures that these print statements won't mix with other threads'
-                synchronized(System.out) {
-                    System.out.println("---------- Begin client request header -----");
-                    System.out.println(requestLine);
-    
-                    String headerLine = "";
-                    while((headerLine = inFromClient.readLine()).length() != 0) {
-                        System.out.println(headerLine);
-                    }
-                    System.out.println("----------- End client header------------\n\n");
-                }   
+                // the headers don't change where the client is sent, they're only read past
+                String headerLine = "";
+                while((headerLine = inFromClient.readLine()) != null && headerLine.length() != 0)
+                    ;
+                parseTime.recordSince(start);
 
                 StringTokenizer tokens = new StringTokenizer(requestLine);
                 String method = tokens.nextToken();
@@ -99,14 +140,25 @@ public final class Dispatcher {
                     return null; // return because the method should not be handled by this server
                 }  
 
+                String target = tokens.hasMoreTokens() ? tokens.nextToken() : "/";
+                if(target.equals(METRICS_PATH)) {
+                    outToClient.write(metricsResponse(false));
+                    outToClient.flush();
+                    return null;
+                }
+
+                // the redirect is answered right away, so the server doesn't stay counted as busy
+                long routing = System.nanoTime();
+                redirect = backends.route(target);
+                routeTime.recordSince(routing);
+                backends.finished(redirect, -1, false);
+
                 // Construct the response message
                 String statusLine = "";
-                String contentTypeLine = null;
                 String entityBody = "";
 
                 // build response page
                 statusLine = "HTTP/1.1 200 OK" + CRLF;
-                contentTypeLine = "text/html" + CRLF;
                 entityBody = "<!DOCTYPE html>\n" +
                              "<HTML>\n" +
                              "<HEAD>\n" +
@@ -120,14 +172,12 @@ public final class Dispatcher {
                 // Send the responses
                 outToClient.writeBytes(statusLine + CRLF);
                 outToClient.writeBytes(entityBody);
-                // log the headers that were sent to client
-                // synchronized ensures the order of print statements won't mix with those in other threads
-                synchronized(System.out) {
-                    System.out.println("---------- Begin server response header ------");
-                    System.out.println(statusLine);
-                    System.out.println(contentTypeLine);
-                    System.out.println("---------- End server response header --------\n\n");
-                }
+                metrics.status(statusLine);
+                bytesServed.add(outToClient.size());
+                // queued for the access log's writer thread, never printed from here
+                if(accessLog != null)
+                    accessLog.log(socket.getInetAddress().getHostAddress() + ":" + socket.getPort(), requestLine, statusLine,
+                                  outToClient.size(), (System.nanoTime() - start) / 1000, redirect);
 
                 // close data streams
                 inFromClient.close();
@@ -148,5 +198,273 @@ public final class Dispatcher {
             return null;
         }
     }
-}
 
+    /**
+     * Forwards every HTTP request read from a client connection to a web server and streams the response back, so
+     * the client sees a single hop. Upstream connections come from the shared UpstreamPool and are kept alive.
+     * A request that fails on a pooled connection before anything was sent to the client is retried once on a new one,
+     * since the backend may have closed the idle connection in the meantime.
+     * Implementing Callable<Void> allows this to be run multi-threaded
+     */
+    private static class Proxy implements Callable<Void> {
+        private static final String CRLF = "\r\n";
+        private static final int IDLE_TIMEOUT_SECONDS = Integer.getInteger("http.idleTimeoutSeconds", 5);
+        private Socket socket;
+        private boolean upstreamFailed; // the last forward() couldn't get a response from its web server
+        private String sentStatus;      // status line and size of the response the last forward() sent
+        private long sentBytes;
+
+        public Proxy(Socket socket) {
+            this.socket = socket;
+        }
+
+        /**
+         * forwards requests until the client closes the connection or stops asking for keep-alive
+         * @retunrs null every time
+         */
+        @Override
+        public Void call() {
+            try {
+                socket.setSoTimeout(IDLE_TIMEOUT_SECONDS * 1000);
+                InputStream inFromClient = new BufferedInputStream(socket.getInputStream());
+                OutputStream outToClient = new BufferedOutputStream(socket.getOutputStream());
+                String client = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+
+                while(true) {
+                    String requestLine = readLine(inFromClient);
+                    if(requestLine == null) // client closed the connection
+                        break;
+                    if(requestLine.isEmpty()) // stray CRLF between pipelined requests is allowed by rfc7230 3.5
+                        continue;
+                    long parsing = System.nanoTime();
+                    List<String> headerLines = readHeaderLines(inFromClient);
+                    parseTime.recordSince(parsing);
+
+                    String connection = header(headerLines, "connection").toLowerCase();
+                    boolean keepAlive = requestLine.endsWith("HTTP/1.1") ? !connection.contains("close") : connection.contains("keep-alive");
+
+                    String[] tokens = requestLine.split(" ");
+                    if(tokens.length > 1 && tokens[1].equals(METRICS_PATH)) {
+                        outToClient.write(metricsResponse(keepAlive));
+                        outToClient.flush();
+                        if(!keepAlive)
+                            break;
+                        continue;
+                    }
+                    // taken before routing, which counts the request against its web server
+                    long admitted = admission.acquire();
+                    if(admitted < 0) {
+                        byte[] refusal = AdmissionControl.response(AdmissionControl.UNAVAILABLE);
+                        outToClient.write(refusal);
+                        outToClient.flush();
+                        metrics.status(AdmissionControl.UNAVAILABLE);
+                        bytesServed.add(refusal.length);
+                        if(accessLog != null)
+                            accessLog.log(client, requestLine, AdmissionControl.UNAVAILABLE, refusal.length, (System.nanoTime() - parsing) / 1000, null);
+                        break;
+                    }
+                    long routing = System.nanoTime();
+                    String host = backends.route(tokens.length > 1 ? tokens[1] : "/");
+                    routeTime.recordSince(routing);
+                    long start = System.nanoTime();
+                    long latencyMillis = -1; // no sample if the client went away mid-response
+                    upstreamFailed = false;
+                    try {
+                        keepAlive = forward(host, requestLine, headerLines, inFromClient, outToClient, keepAlive);
+                        latencyMillis = (System.nanoTime() - start) / 1000000;
+                        upstreamTime.recordSince(start);
+                        metrics.status(sentStatus);
+                        bytesServed.add(sentBytes);
+                        if(accessLog != null)
+                            accessLog.log(client, requestLine, sentStatus, sentBytes, (System.nanoTime() - parsing) / 1000, host);
+                    } finally {
+                        backends.finished(host, latencyMillis, upstreamFailed);
+                        admission.release(admitted);
+                    }
+                    outToClient.flush();
+                    if(!keepAlive)
+                        break;
+                }
+            } catch (SocketTimeoutException e) {
+                // idle keep-alive connection, nothing left to forward
+            } catch (IOException e) {
+                System.err.println("Error while proxying response");
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Give up handling exceptions, something pretty bad happened
+                }
+            }
+
+            // necessary for implemented method
+            return null;
+        }
+
+        /*
+         * sends one request to host and relays its response. Returns whether the client connection can stay open
+         */
+        private boolean forward(String host, String requestLine, List<String> headerLines, InputStream inFromClient,
+                                OutputStream outToClient, boolean keepAlive) throws IOException {
+            long requestBody = contentLength(headerLines);
+            if(requestBody < 0)
+                requestBody = 0;
+
+            for(int attempt = 0; attempt < 2; attempt++) {
+                UpstreamPool.Upstream upstream;
+                try {
+                    upstream = upstreams.borrow(host, attempt == 0);
+                } catch (IOException e) {
+                    break;
+                }
+
+                String statusLine;
+                List<String> responseHeaders;
+                try {
+                    StringBuilder request = new StringBuilder(requestLine).append(CRLF);
+                    for(String headerLine : headerLines) {
+                        if(!isHopByHop(headerLine))
+                            request.append(headerLine).append(CRLF);
+                    }
+                    request.append("Connection: keep-alive").append(CRLF);
+                    request.append("X-Forwarded-For: ").append(socket.getInetAddress().getHostAddress()).append(CRLF);
+                    request.append(CRLF);
+                    upstream.out.write(request.toString().getBytes(StandardCharsets.ISO_8859_1));
+                    copy(inFromClient, upstream.out, requestBody);
+                    upstream.out.flush();
+
+                    statusLine = readLine(upstream.in);
+                    if(statusLine == null)
+                        throw new EOFException("backend closed the connection");
+                    responseHeaders = readHeaderLines(upstream.in);
+                } catch (IOException e) {
+                    upstream.close();
+                    if(upstream.reused && requestBody == 0) // stale pooled connection, try once more on a fresh one
+                        continue;
+                    break;
+                }
+
+                // a body without a length can only be framed by closing the connection. A HEAD's response is all head,
+                // its Content-Length is the GET's (see WebServer.HttpRequest.sendsBody, bench/HeadCheck.java checks it),
+                // so the connection can go back to the pool right after it
+                long length = contentLength(responseHeaders);
+                boolean bodyless = requestLine.startsWith("HEAD ") || statusLine.contains(" 204 ") || statusLine.contains(" 304 ");
+                boolean untilClose = length < 0 && !bodyless;
+                String upstreamConnection = header(responseHeaders, "connection").toLowerCase();
+                boolean reusable = !untilClose && !upstreamConnection.contains("close");
+                if(untilClose)
+                    keepAlive = false;
+
+                StringBuilder response = new StringBuilder(statusLine).append(CRLF);
+                for(String headerLine : responseHeaders) {
+                    if(!isHopByHop(headerLine))
+                        response.append(headerLine).append(CRLF);
+                }
+                response.append(keepAlive ? "Connection: keep-alive" : "Connection: close").append(CRLF);
+                response.append(CRLF);
+                byte[] head = response.toString().getBytes(StandardCharsets.ISO_8859_1);
+                outToClient.write(head);
+
+                long body;
+                try {
+                    body = copy(upstream.in, outToClient, bodyless ? 0 : length);
+                } catch (IOException e) {
+                    upstream.close();
+                    throw e;
+                }
+                sentStatus = statusLine;
+                sentBytes = head.length + body;
+                if(reusable)
+                    upstreams.release(upstream);
+                else
+                    upstream.close();
+                return keepAlive;
+            }
+
+            upstreamFailed = true;
+            String entityBody = "<!DOCTYPE html>\n<HTML>\n<HEAD>\n<TITLE>502 Bad Gateway</TITLE>\n</HEAD>\n<BODY>The web server could not be reached.</BODY>\n</HTML>";
+            byte[] badGateway = ("HTTP/1.1 502 Bad Gateway" + CRLF +
+                                 "Content-type: text/html" + CRLF +
+                                 "Content-Length: " + entityBody.length() + CRLF +
+                                 (keepAlive ? "Connection: keep-alive" : "Connection: close") + CRLF + CRLF +
+                                 entityBody).getBytes(StandardCharsets.ISO_8859_1);
+            outToClient.write(badGateway);
+            sentStatus = "HTTP/1.1 502 Bad Gateway";
+            sentBytes = badGateway.length;
+            return keepAlive;
+        }
+
+        /*
+         * copies length bytes, or everything up to end of stream if length is negative. Returns how many were copied
+         */
+        private static long copy(InputStream in, OutputStream out, long length) throws IOException {
+            byte[] buffer = new byte[16 * 1024];
+            long remaining = length;
+            long copied = 0;
+            while(length < 0 || remaining > 0) {
+                int bytes = in.read(buffer, 0, length < 0 ? buffer.length : (int) Math.min(buffer.length, remaining));
+                if(bytes == -1) {
+                    if(length < 0)
+                        return copied;
+                    throw new EOFException("stream ended " + remaining + " bytes early");
+                }
+                out.write(buffer, 0, bytes);
+                remaining -= bytes;
+                copied += bytes;
+            }
+            return copied;
+        }
+
+        // headers that describe a single connection and must not be passed on (rfc7230 6.1)
+        private static boolean isHopByHop(String headerLine) {
+            String name = headerLine.substring(0, Math.max(0, headerLine.indexOf(':'))).trim().toLowerCase();
+            return name.equals("connection") || name.equals("keep-alive") || name.equals("proxy-connection")
+                || name.equals("te") || name.equals("trailer") || name.equals("upgrade");
+        }
+
+        private static long contentLength(List<String> headerLines) {
+            try {
+                String length = header(headerLines, "content-length");
+                return length.isEmpty() ? -1 : Long.parseLong(length);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        // value of the first header named name, or "" if it isn't there
+        private static String header(List<String> headerLines, String name) {
+            for(String headerLine : headerLines) {
+                int colon = headerLine.indexOf(':');
+                if(colon > 0 && headerLine.substring(0, colon).trim().equalsIgnoreCase(name))
+                    return headerLine.substring(colon + 1).trim();
+            }
+            return "";
+        }
+
+        private static List<String> readHeaderLines(InputStream in) throws IOException {
+            List<String> headerLines = new ArrayList<>();
+            String headerLine;
+            while((headerLine = readLine(in)) != null && headerLine.length() != 0)
+                headerLines.add(headerLine);
+            return headerLines;
+        }
+
+        /*
+         * reads one CRLF (or bare LF) terminated line as ISO-8859-1, or null at end of stream
+         */
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while((c = in.read()) != -1) {
+                if(c == '\n') {
+                    int end = line.length();
+                    if(end > 0 && line.charAt(end - 1) == '\r')
+                        line.setLength(end - 1);
+                    return line.toString();
+                }
+                line.append((char) c);
+            }
+            return line.length() == 0 ? null : line.toString();
+        }
+    }
+}
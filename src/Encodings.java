@@ -0,0 +1,101 @@
+/**
+ * Content codings the server can send text in. Variants are compressed once, when their file (or search page) is
+ * stored in the cache, and kept next to the identity bytes under encoding:key. Each request then picks the best one
+ * its Accept-Encoding allows.
+ * The JDK only ships gzip and deflate, so those are the ones offered. Images are already compressed and are never
+ * encoded again.
+ */
+import java.io.*;
+import java.util.zip.*;
+
+final class Encodings {
+    // in order of preference when a client accepts several equally
+    static final String[] SUPPORTED = { "gzip", "deflate" };
+    // smaller bodies come out about the same size or larger once the encoding's own headers are added
+    private static final int MIN_BYTES = 256;
+
+    private Encodings() {
+    }
+
+    /*
+     * whether bodies of this content type and size are worth compressing
+     */
+    static boolean compressible(String contentType, long length) {
+        return length >= MIN_BYTES && compressible(contentType);
+    }
+
+    // whether the content type is text rather than an already compressed format
+    static boolean compressible(String contentType) {
+        if(contentType == null)
+            return false;
+        return contentType.startsWith("text/") || contentType.startsWith("application/javascript")
+            || contentType.startsWith("application/json") || contentType.startsWith("image/svg+xml");
+    }
+
+    /*
+     * the supported encoding acceptEncoding gives the highest q-value to, or null for identity
+     */
+    static String negotiate(String acceptEncoding) {
+        if(acceptEncoding == null)
+            return null;
+        String best = null;
+        double bestQ = 0;
+        for(String encoding : SUPPORTED) {
+            double q = quality(acceptEncoding, encoding);
+            if(q > bestQ) {
+                best = encoding;
+                bestQ = q;
+            }
+        }
+        return best;
+    }
+
+    // the q-value given to encoding, by name or by "*", 0 if neither is listed
+    private static double quality(String acceptEncoding, String encoding) {
+        double wildcard = 0;
+        for(String item : acceptEncoding.split(",")) {
+            String[] params = item.trim().split(";");
+            String name = params[0].trim().toLowerCase();
+            double q = 1;
+            for(int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if(param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if(name.equals(encoding))
+                return q;
+            if(name.equals("*"))
+                wildcard = q;
+        }
+        return wildcard;
+    }
+
+    static byte[] encode(byte[] data, String encoding) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 3 + 64);
+        try (OutputStream compressor = encoding.equals("gzip") ? new GZIPOutputStream(out)
+                                                                : new DeflaterOutputStream(out)) { // zlib format, which is what HTTP calls deflate
+            compressor.write(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // only thrown by the underlying stream, which is in memory
+        }
+        return out.toByteArray();
+    }
+
+    // the key a variant is cached under, identity is the key itself. The encoding goes in front, where the paths and
+    // queries keys end in can't put it: every key starts with "./", "search:" or "thumb:"
+    static String variantKey(String key, String encoding) {
+        return encoding == null ? key : encoding + ":" + key;
+    }
+
+    // strong ETags have to differ between encodings of the same content
+    static String variantEtag(String etag, String encoding) {
+        if(etag == null || encoding == null)
+            return etag;
+        return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Consistent hash ring over the web servers, so each request path keeps going to the same server and that server's
+ * caches only have to hold its own slice of the pictures. Every host is placed on the ring at many points (virtual
+ * nodes) using ketama-style MD5 hashing, so the slices come out even and adding or removing a host only moves the keys
+ * next to its points.
+ * The ring itself is immutable, which hosts may take a key (health, load) is decided by the caller on every pick.
+ */
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.*;
+import java.util.function.Predicate;
+
+final class HashRing {
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final int hosts;
+
+    private static final ThreadLocal<MessageDigest> md5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is required of every JVM", e);
+        }
+    });
+
+    HashRing(Collection<String> hosts, int virtualNodes) {
+        this.hosts = hosts.size();
+        for(String host : hosts) {
+            // each digest gives four 32 bit points, as in ketama
+            for(int i = 0; i < (virtualNodes + 3) / 4; i++) {
+                byte[] digest = digest(host + "-" + i);
+                for(int h = 0; h < 4; h++)
+                    ring.put(point(digest, h), host);
+            }
+        }
+    }
+
+    /*
+     * walks the ring clockwise from key's point and returns the first host that accept agrees to,
+     * or null if none does
+     */
+    String pick(String key, Predicate<String> accept) {
+        if(ring.isEmpty())
+            return null;
+        Long start = ring.ceilingKey(point(digest(key), 0));
+        if(start == null)
+            start = ring.firstKey();
+
+        Set<String> seen = new HashSet<>();
+        Iterator<String> walk = ring.tailMap(start, true).values().iterator();
+        boolean wrapped = false;
+        while(seen.size() < hosts) {
+            if(!walk.hasNext()) {
+                if(wrapped)
+                    break;
+                walk = ring.headMap(start, false).values().iterator();
+                wrapped = true;
+                continue;
+            }
+            String host = walk.next();
+            if(seen.add(host) && accept.test(host))
+                return host;
+        }
+        return null;
+    }
+
+    private static byte[] digest(String key) {
+        MessageDigest digest = md5.get();
+        digest.reset();
+        return digest.digest(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static long point(byte[] digest, int h) {
+        return ((long) (digest[3 + h * 4] & 0xFF) << 24)
+             | ((long) (digest[2 + h * 4] & 0xFF) << 16)
+             | ((long) (digest[1 + h * 4] & 0xFF) << 8)
+             | (digest[h * 4] & 0xFF);
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Counters, gauges and latency histograms for the admin metrics page of the web server and the dispatcher.
+ * Recording never takes a lock: counters are LongAdders and histograms are arrays of atomic bucket counts, so the
+ * instrumentation on the request path costs a few mostly uncontended atomic adds. Gauges are read only when the page
+ * is rendered. Everything counts from startup, as "name value" lines sorted by name like the stats page.
+ */
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.Supplier;
+
+final class Metrics {
+    private final LongAdder[] statuses = new LongAdder[600];
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Supplier<?>> gauges = new ConcurrentHashMap<>();
+
+    Metrics() {
+        for(int i = 0; i < statuses.length; i++)
+            statuses[i] = new LongAdder();
+    }
+
+    /*
+     * counts a response by the status code in its status line, e.g. "HTTP/1.1 200 OK"
+     */
+    void status(String statusLine) {
+        int code = statusCode(statusLine);
+        if(code >= 100 && code < statuses.length)
+            statuses[code].increment();
+    }
+
+    // the code in a status line, 0 if it isn't one
+    static int statusCode(String statusLine) {
+        int space = statusLine.indexOf(' ');
+        try {
+            return Integer.parseInt(statusLine.substring(space + 1, space + 4));
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    // callers on the request path keep the returned counter instead of looking it up every time
+    LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    void gauge(String name, Supplier<?> value) {
+        gauges.put(name, value);
+    }
+
+    static String ratio(long part, long whole) {
+        return whole == 0 ? "0" : String.format(Locale.ROOT, "%.3f", (double) part / whole);
+    }
+
+    String render() {
+        SortedMap<String, Object> lines = new TreeMap<>();
+        for(int code = 0; code < statuses.length; code++) {
+            long count = statuses[code].sum();
+            if(count > 0)
+                lines.put("responses." + code, count);
+        }
+        counters.forEach((name, counter) -> lines.put(name, counter.sum()));
+        gauges.forEach((name, gauge) -> {
+            try {
+                lines.put(name, gauge.get());
+            } catch (RuntimeException e) { // e.g. reads a pool that isn't created yet
+                lines.put(name, "n/a");
+            }
+        });
+        histograms.forEach((name, histogram) -> histogram.render(name, lines));
+
+        StringBuilder body = new StringBuilder();
+        lines.forEach((name, value) -> body.append(name).append(' ').append(value).append('\n'));
+        return body.toString();
+    }
+
+    /**
+     * A latency distribution in microseconds with bounded relative error, in the manner of HdrHistogram: values are
+     * bucketed by their highest set bit, and each power of two is split into SUB_BUCKETS linear buckets, so any value
+     * is reported at most 1/SUB_BUCKETS above what was recorded while the whole range of a long fits in under a
+     * thousand buckets.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final double[] PERCENTILES = { 0.5, 0.9, 0.99, 0.999 };
+        private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+        private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long micros) {
+            if(micros < 0)
+                micros = 0;
+            counts.incrementAndGet(index(micros));
+            sum.add(micros);
+            max.accumulate(micros);
+        }
+
+        // records the time since startNanos, a System.nanoTime() reading
+        void recordSince(long startNanos) {
+            record((System.nanoTime() - startNanos) / 1000);
+        }
+
+        static int index(long value) {
+            if(value < SUB_BUCKETS)
+                return (int) value;
+            int magnitude = 63 - Long.numberOfLeadingZeros(value); // at least SUB_BUCKET_BITS here
+            int shift = magnitude - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        // the largest value that lands in bucket index
+        static long highestIn(int index) {
+            if(index < SUB_BUCKETS)
+                return index;
+            int shift = index / SUB_BUCKETS - 1;
+            long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+
+        long count() {
+            long total = 0;
+            for(int i = 0; i < counts.length(); i++)
+                total += counts.get(i);
+            return total;
+        }
+
+        long mean() {
+            long total = count();
+            return total == 0 ? 0 : sum.sum() / total;
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        /*
+         * the value at or below which the given share of the samples (0.99 for p99) fell, 0 with no samples.
+         * Buckets are read one by one while recording goes on, so this can be off by the few samples that arrive
+         * during the read
+         */
+        long percentile(double share) {
+            long[] snapshot = new long[counts.length()];
+            long total = 0;
+            for(int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            if(total == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(share * total));
+            int bucket = 0;
+            long seen = snapshot[0];
+            while(seen < rank && bucket < snapshot.length - 1)
+                seen += snapshot[++bucket];
+            return Math.min(highestIn(bucket), max.get());
+        }
+
+        // adds count, mean, percentiles and max
+        void render(String name, Map<String, Object> lines) {
+            long total = count();
+            lines.put(name + ".count", total);
+            if(total == 0)
+                return;
+            lines.put(name + ".mean", mean());
+            for(int p = 0; p < PERCENTILES.length; p++)
+                lines.put(name + "." + PERCENTILE_NAMES[p], percentile(PERCENTILES[p]));
+            lines.put(name + ".max", max());
+        }
+    }
+}
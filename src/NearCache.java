@@ -0,0 +1,171 @@
+/**
+ * A small in-process cache that sits in front of memcached so hot files can be served without a network round trip.
+ * Capacity is counted in bytes rather than entries. Entries are kept in a segmented LRU: new entries land in a
+ * probation segment and are only promoted to the protected segment on a second hit, so a one-off sweep over the
+ * pictures directory can't push the frequently requested images out.
+ * Entries expire after a fixed TTL, and are dropped as soon as the file on disk reports a different mtime.
+ */
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+final class NearCache {
+    // share of the total capacity reserved for entries that have been hit at least twice
+    private static final double PROTECTED_RATIO = 0.8;
+
+    private final long maxBytes;
+    private final long protectedMaxBytes;
+    private final long ttlMillis;
+
+    // both maps are access ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private long probationBytes = 0;
+    private long protectedBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private static final class Entry {
+        final byte[] value;
+        final long lastModified;
+        final long expiresAt;
+
+        Entry(byte[] value, long lastModified, long expiresAt) {
+            this.value = value;
+            this.lastModified = lastModified;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * @param maxBytes total number of value bytes the cache may hold
+     * @param ttlMillis how long an entry may be served before it has to be fetched again
+     */
+    NearCache(long maxBytes, long ttlMillis) {
+        this.maxBytes = maxBytes;
+        this.protectedMaxBytes = (long) (maxBytes * PROTECTED_RATIO);
+        this.ttlMillis = ttlMillis;
+    }
+
+    /*
+     * returns the cached bytes for key, or null if they are missing, expired, or were cached for a different
+     * version of the file than lastModified
+     */
+    byte[] get(String key, long lastModified) {
+        boolean stale = false;
+        byte[] value = null;
+        synchronized (this) {
+            Entry entry = protectedSegment.get(key);
+            if(entry == null) {
+                entry = probation.remove(key);
+                if(entry != null) {
+                    probationBytes -= entry.value.length;
+                    if(isValid(entry, lastModified))
+                        promote(key, entry);
+                }
+            } else if(!isValid(entry, lastModified)) {
+                protectedSegment.remove(key);
+                protectedBytes -= entry.value.length;
+            }
+
+            if(entry != null) {
+                if(isValid(entry, lastModified))
+                    value = entry.value;
+                else
+                    stale = entry.lastModified != lastModified;
+            }
+        }
+
+        if(value != null) {
+            hits.incrementAndGet();
+            return value;
+        }
+        misses.incrementAndGet();
+        if(stale)
+            invalidations.incrementAndGet();
+        return null;
+    }
+
+    /*
+     * caches value for key as a version of the file last modified at lastModified. Values too large to fit in the
+     * probation segment are ignored so a single big file can't flush everything else
+     */
+    void put(String key, byte[] value, long lastModified) {
+        if(value == null || value.length > maxBytes - protectedMaxBytes)
+            return;
+        synchronized (this) {
+            removeQuietly(key);
+            probation.put(key, new Entry(value, lastModified, System.currentTimeMillis() + ttlMillis));
+            probationBytes += value.length;
+            evict();
+        }
+    }
+
+    synchronized void invalidate(String key) {
+        if(removeQuietly(key))
+            invalidations.incrementAndGet();
+    }
+
+    long hits() { return hits.get(); }
+    long misses() { return misses.get(); }
+    long evictions() { return evictions.get(); }
+    long invalidations() { return invalidations.get(); }
+    synchronized long sizeBytes() { return probationBytes + protectedBytes; }
+    synchronized int size() { return probation.size() + protectedSegment.size(); }
+
+    private boolean isValid(Entry entry, long lastModified) {
+        return entry.lastModified == lastModified && System.currentTimeMillis() < entry.expiresAt;
+    }
+
+    // caller holds the lock and has already taken entry out of probation
+    private void promote(String key, Entry entry) {
+        protectedSegment.put(key, entry);
+        protectedBytes += entry.value.length;
+
+        // overflow from the protected segment gets a second chance at the most recent end of probation
+        Iterator<Map.Entry<String, Entry>> it = protectedSegment.entrySet().iterator();
+        while(protectedBytes > protectedMaxBytes && it.hasNext()) {
+            Map.Entry<String, Entry> demoted = it.next();
+            if(demoted.getKey().equals(key))
+                continue;
+            it.remove();
+            protectedBytes -= demoted.getValue().value.length;
+            probation.put(demoted.getKey(), demoted.getValue());
+            probationBytes += demoted.getValue().value.length;
+        }
+        evict();
+    }
+
+    // caller holds the lock. Probation is always drained first, the protected segment only if probation is empty
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = probation.entrySet().iterator();
+        while(probationBytes + protectedBytes > maxBytes && it.hasNext()) {
+            probationBytes -= it.next().getValue().value.length;
+            it.remove();
+            evictions.incrementAndGet();
+        }
+        it = protectedSegment.entrySet().iterator();
+        while(probationBytes + protectedBytes > maxBytes && it.hasNext()) {
+            protectedBytes -= it.next().getValue().value.length;
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    // caller holds the lock
+    private boolean removeQuietly(String key) {
+        Entry old = probation.remove(key);
+        if(old != null) {
+            probationBytes -= old.value.length;
+            return true;
+        }
+        old = protectedSegment.remove(key);
+        if(old != null) {
+            protectedBytes -= old.value.length;
+            return true;
+        }
+        return false;
+    }
+}
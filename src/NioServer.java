@@ -0,0 +1,348 @@
+/**
+ * Serves the same requests as WebServer's thread-per-connection loop from a single selector thread.
+ * Sockets are non-blocking and cache lookups go through memcached's async gets, so a slow client or a slow cache fill
+ * only holds a buffer instead of a thread. When a response's lookup completes, the connection is queued back to the
+ * selector, which writes the headers and body together in one gathering write, or follows the headers with
+ * transferTo for files sent from disk. Chunked cache bodies are written group by group, the connection going back to
+ * the ready queue each time the next group arrives.
+ * Keep-alive, pipelining and idle timeouts behave as in WebServer.HttpRequest, and so does admission control: there
+ * is no queue for a thread here, but connections count against their client's limit and requests against the
+ * adaptive limit.
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+final class NioServer {
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_HEAD_SIZE = 64 * 1024; // a request head larger than this closes the connection
+    private static final long IDLE_TIMEOUT_MILLIS = WebServer.HttpRequest.IDLE_TIMEOUT_SECONDS * 1000L;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    // connections whose response was finished on another thread and now waits for the selector to write it
+    private final ConcurrentLinkedQueue<Connection> ready = new ConcurrentLinkedQueue<>();
+
+    NioServer(int port) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /*
+     * runs the selector loop forever
+     */
+    void run() throws IOException {
+        long lastSweep = System.currentTimeMillis();
+        while(true) {
+            selector.select(1000);
+
+            Connection done;
+            while((done = ready.poll()) != null)
+                done.resume();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while(keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if(!key.isValid())
+                        continue;
+                    if(key.isAcceptable())
+                        accept();
+                    else if(key.isReadable())
+                        ((Connection) key.attachment()).read();
+                    else if(key.isWritable())
+                        ((Connection) key.attachment()).write();
+                } catch (IOException | CancelledKeyException e) {
+                    if(key.attachment() != null)
+                        ((Connection) key.attachment()).close();
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            if(now - lastSweep >= 1000) {
+                closeIdle(now);
+                lastSweep = now;
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while((channel = serverChannel.accept()) != null) {
+            if(!WebServer.admission.admit(channel.socket())) // still blocking, the 429 is written and the channel closed
+                continue;
+            channel.configureBlocking(false);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        }
+    }
+
+    // only connections waiting on the client are timed out, not ones whose response is still being looked up
+    private void closeIdle(long now) {
+        for(SelectionKey key : new ArrayList<>(selector.keys())) {
+            Connection connection = (Connection) key.attachment();
+            if(connection != null && !connection.busy && now - connection.lastActive > IDLE_TIMEOUT_MILLIS)
+                connection.close();
+        }
+    }
+
+    /*
+     * per-connection state. Every field is only touched by the selector thread, except response which is handed
+     * over through the ready queue
+     */
+    private final class Connection {
+        final SocketChannel channel;
+        final String client;
+        final InetAddress address;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE); // kept in write mode between reads
+        ByteBuffer[] out;             // response currently being written
+        FileChannel fileOut;          // body file still to be sent after out, if the response is sent from disk
+        long filePosition;
+        long fileEnd;
+        List<CompletableFuture<ByteBuffer[]>> parts; // chunk groups of the current response, while it is streamed
+        int nextPart;
+        volatile ByteBuffer[] arrived; // the chunk group handed over through the ready queue
+        volatile WebServer.Response response;
+        WebServer.Response sending;   // the response being written, counted and logged once it is all out
+        String requestLine;           // of the response being built or written
+        int sendingHeadBytes;
+        long requestStart;            // System.nanoTime() when the request head was complete
+        long sendStart;
+        long bodyToSkip = 0;          // remaining request body bytes that aren't used
+        int served = 0;
+        boolean keepAlive = true;
+        boolean busy = false;         // a request is being answered, pipelined ones wait in the buffer
+        long lastActive = System.currentTimeMillis();
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            Socket socket = channel.socket();
+            this.address = socket.getInetAddress();
+            this.client = address.getHostAddress() + ":" + socket.getPort();
+        }
+
+        void read() throws IOException {
+            if(!in.hasRemaining()) {
+                if(in.capacity() >= MAX_HEAD_SIZE) {
+                    close();
+                    return;
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+            if(channel.read(in) == -1) { // client closed the connection
+                close();
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            nextRequest();
+        }
+
+        /*
+         * parses the next complete request head out of the buffer, if there is one, and starts answering it
+         */
+        void nextRequest() {
+            if(busy)
+                return;
+
+            in.flip();
+            long skip = Math.min(bodyToSkip, in.remaining());
+            in.position(in.position() + (int) skip);
+            bodyToSkip -= skip;
+
+            int end = headEnd(in);
+            if(end < 0) {
+                in.compact();
+                return;
+            }
+            byte[] headBytes = new byte[end - in.position()];
+            in.get(headBytes);
+            in.position(end + 4);
+            in.compact();
+
+            requestStart = System.nanoTime();
+            String[] lines = new String(headBytes, StandardCharsets.ISO_8859_1).split("\r\n");
+            int first = 0;
+            while(first < lines.length && lines[first].isEmpty()) // stray CRLF between pipelined requests is allowed by rfc7230 3.5
+                first++;
+            if(first == lines.length) {
+                nextRequest();
+                return;
+            }
+            requestLine = lines[first];
+            Map<String, String> headers = new HashMap<>();
+            for(int i = first + 1; i < lines.length; i++)
+                WebServer.HttpRequest.parseHeader(lines[i], headers);
+            WebServer.parseTime.recordSince(requestStart);
+
+            try {
+                String contentLength = headers.get("content-length");
+                if(contentLength != null)
+                    bodyToSkip = Long.parseLong(contentLength);
+            } catch (NumberFormatException e) {
+                close();
+                return;
+            }
+            served++;
+            keepAlive = WebServer.HttpRequest.isKeepAlive(requestLine, headers) && served < WebServer.HttpRequest.MAX_REQUESTS_PER_CONNECTION;
+            busy = true;
+            key.interestOps(0); // stop reading until this response is out, so a fast client can't queue unlimited work
+
+            long admitted = WebServer.admission.acquire();
+            if(admitted < 0) {
+                keepAlive = false;
+                response = WebServer.SERVICE_UNAVAILABLE;
+                resume();
+                return;
+            }
+            CompletableFuture<WebServer.Response> pending;
+            try {
+                pending = WebServer.HttpRequest.respond(requestLine, headers);
+            } catch (RuntimeException e) { // malformed request line
+                WebServer.admission.release(admitted);
+                close();
+                return;
+            }
+            pending.whenComplete((result, error) -> {
+                WebServer.admission.release(admitted);
+                if(error != null) {
+                    System.err.println("Error while building response for " + client + ": " + error);
+                    result = null;
+                }
+                response = result;
+                ready.add(this);
+                selector.wakeup();
+            });
+        }
+
+        // called on the selector thread once a response, or the next chunk group of one, has been handed over
+        void resume() {
+            if(!channel.isOpen())
+                return;
+            if(parts != null) {
+                out = arrived;
+                arrived = null;
+                if(out == null) { // the chunks couldn't be fetched, the response can't be finished
+                    close();
+                    return;
+                }
+                try {
+                    write();
+                } catch (IOException e) {
+                    close();
+                }
+                return;
+            }
+
+            if(response == null) { // the lookup failed, there is nothing sensible left to send
+                close();
+                return;
+            }
+            byte[] head = WebServer.HttpRequest.responseHead(response, keepAlive).getBytes(StandardCharsets.ISO_8859_1);
+            sending = response;
+            sendingHeadBytes = head.length;
+            sendStart = System.nanoTime();
+            try {
+                if(!WebServer.HttpRequest.sendsBody(requestLine, response)) {
+                    out = new ByteBuffer[] { ByteBuffer.wrap(head) };
+                } else if(response.body != null) {
+                    out = new ByteBuffer[] { ByteBuffer.wrap(head), ByteBuffer.wrap(response.body, (int) response.offset, (int) response.length) };
+                } else if(response.parts != null) {
+                    out = new ByteBuffer[] { ByteBuffer.wrap(head) };
+                    parts = response.parts;
+                    nextPart = 0;
+                } else {
+                    out = new ByteBuffer[] { ByteBuffer.wrap(head) };
+                    fileOut = FileChannel.open(response.file.toPath(), StandardOpenOption.READ);
+                    filePosition = response.offset;
+                    fileEnd = response.offset + response.length;
+                }
+                response = null;
+                write();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void write() throws IOException {
+            channel.write(out);
+            lastActive = System.currentTimeMillis();
+            if(WebServer.HttpRequest.hasRemaining(out)) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            if(fileOut != null) {
+                long sent = fileOut.transferTo(filePosition, fileEnd - filePosition, channel);
+                if(sent < 0 || (sent == 0 && filePosition >= fileOut.size())) // only happens at end of file
+                    throw new EOFException("file shrank while being sent");
+                filePosition += sent;
+                if(filePosition < fileEnd) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                fileOut.close();
+                fileOut = null;
+            }
+            if(parts != null) {
+                if(nextPart < parts.size()) {
+                    key.interestOps(0);
+                    parts.get(nextPart++).whenComplete((group, error) -> {
+                        arrived = error == null ? group : null;
+                        ready.add(this);
+                        selector.wakeup();
+                    });
+                    return;
+                }
+                parts = null;
+            }
+
+            WebServer.HttpRequest.recordSent(client, requestLine, sending, sendingHeadBytes, requestStart, sendStart);
+            sending = null;
+            out = null;
+            busy = false;
+            if(!keepAlive) {
+                close();
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            nextRequest(); // a pipelined request may already be buffered
+        }
+
+        void close() {
+            if(channel.isOpen())
+                WebServer.admission.leave(address);
+            try {
+                if(key != null)
+                    key.cancel();
+                if(fileOut != null)
+                    fileOut.close();
+                channel.close();
+            } catch (IOException e) {
+                // nothing left to clean up
+            }
+        }
+    }
+
+    /*
+     * index of the CRLFCRLF that ends a request head between position and limit, or -1
+     */
+    private static int headEnd(ByteBuffer buffer) {
+        for(int i = buffer.position(); i + 3 < buffer.limit(); i++) {
+            if(buffer.get(i) == '\r' && buffer.get(i + 1) == '\n' && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n')
+                return i;
+        }
+        return -1;
+    }
+}
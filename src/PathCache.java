@@ -0,0 +1,191 @@
+/**
+ * Remembers what each request target resolved to: the file, with the length and modification time it had, or that
+ * there was no such file. A request for a known path, or a known miss, is then answered from one map lookup, without
+ * rewriting the target again or asking the file system anything. Misses, mostly bots and probes, are only kept for
+ * a short time.
+ * A WatchService thread watches the served directory and the directories below it, and drops what an event may have
+ * changed: the entries for a file (or directory) that was modified or deleted, and every miss when something is
+ * created. Without a watch, entries for files expire as quickly as misses. Directories the server writes to but
+ * never serves, like its logs, are left unwatched so its own writes don't keep dropping entries.
+ * Files and misses are kept in maps of at most maxEntries targets each, a full map is cleared, so a flood of
+ * random targets only ever pushes out other misses.
+ */
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.Function;
+
+final class PathCache {
+    static final class Resolved {
+        final File file; // null if the target names no regular file
+        final long lastModified;
+        final long length;
+        final Path path; // absolute and normalized, what watch events are matched against
+        final long expiresAt;
+
+        Resolved(File file, long lastModified, long length, long expiresAt) {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.path = file == null ? null : file.toPath().toAbsolutePath().normalize();
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Path root;
+    private final Set<Path> unwatched;
+    private final int maxEntries;
+    private final long missTtlMillis;
+    private volatile long fileTtlMillis = Long.MAX_VALUE; // until a watch event drops it
+    private final Function<String, File> locate;
+    private final ConcurrentHashMap<String, Resolved> files = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Resolved> misses = new ConcurrentHashMap<>();
+    // counts watch events, a resolution that raced with one isn't kept since it may have seen the old file
+    private final AtomicLong changes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder lookups = new LongAdder();
+
+    private PathCache(Path root, Set<Path> unwatched, int maxEntries, long missTtlMillis, Function<String, File> locate) {
+        this.root = root;
+        this.unwatched = unwatched;
+        this.maxEntries = maxEntries;
+        this.missTtlMillis = missTtlMillis;
+        this.locate = locate;
+    }
+
+    /*
+     * a cache for the files locate finds under root, null from locate meaning there is none. Starts watching root,
+     * except the directories below it named in unwatched, which locate must never find files in
+     */
+    static PathCache open(String root, Collection<String> unwatched, int maxEntries, long missTtlMillis,
+                          Function<String, File> locate) {
+        Path base = Paths.get(root).toAbsolutePath().normalize();
+        Set<Path> skipped = new HashSet<>();
+        for(String directory : unwatched)
+            skipped.add(base.resolve(directory).normalize());
+        PathCache cache = new PathCache(base, skipped, maxEntries, missTtlMillis, locate);
+        cache.watch();
+        return cache;
+    }
+
+    /*
+     * what target resolves to now, from the cache if it is known
+     */
+    Resolved resolve(String target) {
+        lookups.increment();
+        long now = System.currentTimeMillis();
+        Resolved known = files.get(target);
+        if(known == null)
+            known = misses.get(target);
+        if(known != null && known.expiresAt > now) {
+            hits.increment();
+            return known;
+        }
+
+        long seen = changes.get();
+        File file = locate.apply(target);
+        Resolved resolved = file == null ? new Resolved(null, 0, 0, now + missTtlMillis)
+                                         : new Resolved(file, file.lastModified(), file.length(), expiry(now, fileTtlMillis));
+        ConcurrentHashMap<String, Resolved> map = file == null ? misses : files;
+        if(map.size() >= maxEntries)
+            map.clear();
+        map.put(target, resolved);
+        if(changes.get() != seen) // a watch event came in meanwhile and may not have seen this entry
+            map.remove(target, resolved);
+        return resolved;
+    }
+
+    int size() {
+        return files.size() + misses.size();
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long lookups() {
+        return lookups.sum();
+    }
+
+    private static long expiry(long now, long ttl) {
+        return ttl == Long.MAX_VALUE ? Long.MAX_VALUE : now + ttl;
+    }
+
+    // drops every entry a change to path may have made wrong
+    private void changed(Path path, boolean created) {
+        changes.incrementAndGet();
+        files.values().removeIf(resolved -> resolved.path.startsWith(path));
+        if(created)
+            misses.clear();
+    }
+
+    private void clear() {
+        changes.incrementAndGet();
+        files.clear();
+        misses.clear();
+    }
+
+    private void watch() {
+        WatchService watcher;
+        try {
+            watcher = root.getFileSystem().newWatchService();
+            register(watcher, root);
+        } catch (IOException e) {
+            System.err.println("couldn't watch " + root + ", resolved paths expire after " + missTtlMillis + "ms instead: " + e);
+            fileTtlMillis = missTtlMillis;
+            return;
+        }
+
+        Thread thread = new Thread(() -> {
+            while(true) {
+                WatchKey key;
+                try {
+                    key = watcher.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                Path directory = (Path) key.watchable();
+                for(WatchEvent<?> event : key.pollEvents()) {
+                    if(event.kind() == StandardWatchEventKinds.OVERFLOW) { // events were lost, start over
+                        clear();
+                        continue;
+                    }
+                    Path path = directory.resolve((Path) event.context());
+                    if(unwatched.contains(path))
+                        continue;
+                    boolean created = event.kind() == StandardWatchEventKinds.ENTRY_CREATE;
+                    changed(path, created);
+                    if(created && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                        try {
+                            register(watcher, path);
+                        } catch (IOException e) {
+                            System.err.println("couldn't watch " + path + ", changes below it go unnoticed: " + e);
+                        }
+                    }
+                }
+                key.reset(); // a deleted directory's key is invalid now, its entries are already dropped
+            }
+        }, "path-cache");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /*
+     * watches directory and every directory below it, except hidden ones and unwatched ones, which are never served
+     */
+    private void register(WatchService watcher, Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path each, BasicFileAttributes attributes) throws IOException {
+                if(unwatched.contains(each) || !each.equals(directory) && each.getFileName().toString().startsWith("."))
+                    return FileVisitResult.SKIP_SUBTREE;
+                each.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                              StandardWatchEventKinds.ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
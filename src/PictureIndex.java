@@ -0,0 +1,182 @@
+/**
+ * In-memory substring index over the file names in a pictures directory, so a search doesn't have to list the
+ * directory and scan every name. Each name is indexed under all of its trigrams. A query of three or more characters
+ * only looks at the names that contain every one of its trigrams, then checks those for the whole query. Shorter
+ * queries scan the names in memory.
+ * The index is built once at startup, in parallel, and a WatchService thread keeps it current as files come and go.
+ * version() identifies the set of names, so anything derived from search results can be keyed on it.
+ */
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.*;
+
+final class PictureIndex {
+    private final Path directory;
+    private final ConcurrentSkipListSet<String> names = new ConcurrentSkipListSet<>();
+    private final ConcurrentHashMap<String, Set<String>> trigrams = new ConcurrentHashMap<>();
+    // xor of a hash of every name, so it doesn't depend on the order names were added in and servers with the same
+    // pictures agree on it
+    private final AtomicLong version = new AtomicLong();
+    private final List<Consumer<String>> addedListeners = new CopyOnWriteArrayList<>();
+
+    private PictureIndex(Path directory) {
+        this.directory = directory;
+    }
+
+    /*
+     * indexes the regular files in directory and starts watching it for changes
+     */
+    static PictureIndex open(String directory) {
+        PictureIndex index = new PictureIndex(Paths.get(directory));
+        index.rebuild();
+        index.watch();
+        return index;
+    }
+
+    /*
+     * names of the files whose name contains query, in sorted order
+     */
+    List<String> search(String query) {
+        if(query.length() < 3) {
+            List<String> matches = new ArrayList<>();
+            for(String name : names) {
+                if(name.contains(query))
+                    matches.add(name);
+            }
+            return matches;
+        }
+
+        // start from the rarest trigram so there's as little as possible to check
+        Set<String> smallest = null;
+        for(String trigram : trigramsOf(query)) {
+            Set<String> posting = trigrams.get(trigram);
+            if(posting == null)
+                return Collections.emptyList();
+            if(smallest == null || posting.size() < smallest.size())
+                smallest = posting;
+        }
+        List<String> matches = new ArrayList<>();
+        for(String name : smallest) {
+            if(name.contains(query))
+                matches.add(name);
+        }
+        Collections.sort(matches);
+        return matches;
+    }
+
+    int size() {
+        return names.size();
+    }
+
+    long version() {
+        return version.get();
+    }
+
+    /*
+     * calls listener with the name of every file that appears in the directory from now on
+     */
+    void onAdded(Consumer<String> listener) {
+        addedListeners.add(listener);
+    }
+
+    private void add(String name) {
+        if(!names.add(name))
+            return;
+        for(String trigram : trigramsOf(name))
+            trigrams.computeIfAbsent(trigram, t -> ConcurrentHashMap.newKeySet()).add(name);
+        // only once the postings have the name: a search that sees the new version must find it
+        version.accumulateAndGet(hash(name), (a, b) -> a ^ b);
+        for(Consumer<String> listener : addedListeners)
+            listener.accept(name);
+    }
+
+    private void remove(String name) {
+        if(!names.remove(name))
+            return;
+        for(String trigram : trigramsOf(name)) {
+            Set<String> posting = trigrams.get(trigram);
+            if(posting != null)
+                posting.remove(name);
+        }
+        version.accumulateAndGet(hash(name), (a, b) -> a ^ b);
+    }
+
+    private void rebuild() {
+        long start = System.currentTimeMillis();
+        List<String> current;
+        try (Stream<Path> files = Files.list(directory)) {
+            current = files.filter(Files::isRegularFile).map(path -> path.getFileName().toString()).collect(Collectors.toList());
+        } catch (IOException e) {
+            System.err.println("couldn't list " + directory + ": " + e);
+            return;
+        }
+        Set<String> keep = new HashSet<>(current);
+        for(String name : names) {
+            if(!keep.contains(name))
+                remove(name);
+        }
+        current.parallelStream().forEach(this::add);
+        System.out.println("indexed " + names.size() + " pictures in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private void watch() {
+        WatchService watcher;
+        try {
+            watcher = directory.getFileSystem().newWatchService();
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                               StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            System.err.println("couldn't watch " + directory + ", search results won't see new pictures: " + e);
+            return;
+        }
+
+        Thread thread = new Thread(() -> {
+            while(true) {
+                WatchKey key;
+                try {
+                    key = watcher.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for(WatchEvent<?> event : key.pollEvents()) {
+                    if(event.kind() == StandardWatchEventKinds.OVERFLOW) { // events were lost, start over
+                        rebuild();
+                        continue;
+                    }
+                    String name = ((Path) event.context()).getFileName().toString();
+                    if(event.kind() == StandardWatchEventKinds.ENTRY_DELETE)
+                        remove(name);
+                    else if(Files.isRegularFile(directory.resolve(name)))
+                        add(name);
+                }
+                if(!key.reset()) {
+                    System.err.println(directory + " is no longer accessible, search results will go stale");
+                    return;
+                }
+            }
+        }, "picture-index");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // 64 bit FNV-1a
+    private static long hash(String name) {
+        long hash = 0xcbf29ce484222325L;
+        for(int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static Set<String> trigramsOf(String text) {
+        Set<String> result = new HashSet<>();
+        for(int i = 0; i + 3 <= text.length(); i++)
+            result.add(text.substring(i, i + 3));
+        return result;
+    }
+}
@@ -1,210 +1,149 @@
+/**
+ * The web server on the JDK's com.sun.net.httpserver.HttpServer instead of WebServer's own socket loop. Requests are
+ * answered by WebServer.HttpRequest.respond, so files, search pages and thumbnails come through the same in-process
+ * cache and memcached, missing files get the same 404 page, and the admin paths, metrics and access log are shared.
+ * HttpServer parses requests and keeps connections alive itself; every response is sent with a Content-Length.
+ * HttpServer queues exchanges for the executor itself, so admission control only applies per request here: a client
+ * with admission.maxPerClient requests in progress gets a 429, and requests over the adaptive limit a 503.
+ * Takes the same options as WebServer, with server.engine picking the handler threads: "pool" (default, server.threads
+ * of them) or "virtual". Run it in place of WebServer to compare the two, e.g. SERVER=SimpleServer in bench/run-local.sh
+ *
+ * Usage: java SimpleServer port
+ */
 import java.io.*;
-import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
 
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
-import com.sun.net.httpserver.Headers;
-import net.spy.memcached.*;
 
-public class SimpleServer{
-    static final String MEMCACHED_HOST = "10.110.10.170";
-    static final int MEMCACHED_PORT = 12440;
-    static MemcachedClient memcachedClient;
-
-    private static void putInCache(String key, Object value) {
-        memcachedClient.set(key, 0, value);
-    }
-
-    private static Object getFromCache(String key) {
-        return memcachedClient.get(key);
-    }
+public class SimpleServer {
 
 	public static void main(String[] args) throws Exception {
+        int port = 0;
+        if(args.length != 1) {
+            System.err.println("Usage: java SimpleServer port");
+            System.exit(1);
+        }
         try {
-            memcachedClient = new MemcachedClient(new InetSocketAddress(MEMCACHED_HOST, MEMCACHED_PORT));
-        } catch (IOException e) {
-            e.printStackTrace(); 
-            System.err.println("\n\n could not connect to memcached host, exiting.");
+            port = Integer.parseInt(args[0]);
+            if(port < 1024 || port > 65535) throw new NumberFormatException();
+        } catch (NumberFormatException e) {
+            System.err.println("ERR - arg 1");
             System.exit(1);
         }
-        
-        HttpServer server = HttpServer.create(new InetSocketAddress(12250), 0);
+
+        WebServer.openCaches();
+        // the default executor runs every exchange on HttpServer's one dispatcher thread
+        // unbounded, HttpServer drops the connection without an answer if its executor rejects an exchange
+        WebServer.pool = ThreadPools.forEngine(System.getProperty("server.engine", "pool"), Integer.getInteger("server.threads", 10), 0);
+
+        // without TCP_NODELAY a response's head and body, written separately, wait out the client's delayed ACK
+        if(System.getProperty("sun.net.httpserver.nodelay") == null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
 		server.createContext("/", new MyHandler());
-		server.setExecutor(null); // creates a default executor
+		server.setExecutor(WebServer.pool);
 		server.start();
+        System.out.println("\nListening for connections on port " + port + " (HttpServer)..\n");
 	}
 
 	static class MyHandler implements HttpHandler {
 		@Override
 		public void handle(HttpExchange t) throws IOException {
-			String method = t.getRequestMethod();
-			System.out.println(method);
-			
-			if(method.equals("GET")){
-				String requestPage = t.getRequestURI().toString();
-				//System.out.println(requestPage);
-				//System.out.println(requestPage.contains("="));
-				if(requestPage.contains("=")){//If there is a search then this method handles it.
-					requestPage = requestPage.substring(requestPage.indexOf("=") + 1, requestPage.length());
-					requestPage = requestPage.replace("+", "");
-					requestPage = requestPage.toLowerCase();
-					System.out.println(requestPage);
-					//^^^Above code gets the search result and deletes spaces and makes it lowercase
-					
-					String html = createHTML(requestPage);//Gets html that is returned
-					
-					//Writes to the viewResults.html page (overwrites file)
-					File file = new File("viewResults.html");
-					FileWriter fw = new FileWriter(file, false);
-					fw.write(html);
-					fw.close();
-					
-					//vvvvv Reads from the results page and uploads it
-					FileInputStream fis = null;
-					try {
-						fis = new FileInputStream("./viewResults.html");
-					} catch (FileNotFoundException e) {
-						System.out.println("Could not open the file");
-					}
-					byte[] buffer = new byte[1024];
-					int bytes = 0;
-				
-					t.sendResponseHeaders(200, 0);
-					OutputStream os = t.getResponseBody();
-			
-					while((bytes = fis.read(buffer)) != -1){
-						os.write(buffer, 0, bytes);
-					}	
-					fis.close();
-					os.close();
-					//^^^^^
-					
-				}
-				else{
-					//vvvvv Returns index page
-					requestPage = "." + requestPage;
-					System.out.println(requestPage);
-					FileInputStream fis = null;
-					try {
-						fis = new FileInputStream(requestPage);
-					} catch (FileNotFoundException e) {
-						System.out.println("Could not open the file");
-					}
-					byte[] buffer = new byte[1024];
-					int bytes = 0;
-				
-					t.sendResponseHeaders(200, 0);
-					OutputStream os = t.getResponseBody();
-			
-					while((bytes = fis.read(buffer)) != -1){
-						os.write(buffer, 0, bytes);
-					}	
-					fis.close();
-					os.close();
-					//^^^^^
-				}
-			}
-			else if(method.equals("POST")){
-				Headers header = t.getRequestHeaders();
-				for(String s: header.keySet()){
-					System.out.println(header.get(s));
-				}
-				
-				InputStream is = t.getRequestBody();
-				
-				//This try catch is supposed to read incoming file line by line to get the text file.
-				//It then attempts to write the information to a file by converting strings to byte arrays. Currently doesn't work.
-				/*try (BufferedReader br = new BufferedReader(new InputStreamReader(is))) {
-   					String line = null;
-   					String fileName = null;
-   					for(int i = 0; i < 4; i++){
-   						if(i == 1){
-   							fileName = br.readLine();
-   							int index = fileName.indexOf("filename=");
-   							fileName = fileName.substring(index + 10, fileName.length() -1);
-   							System.out.println(fileName);
-   						}
-   						else
-   							System.out.println(br.readLine());
-   					}
-   					System.out.println("********");
-   					
-					FileOutputStream fos = null;
-					try{
-						fos = new FileOutputStream(new File("./" + fileName));
-					}
-					catch(IOException e){
-						System.out.println("Could not write to file.");
-					}
-					
-					while((line = br.readLine()) != null) {
-						if(line.contains("-----"))
-							break;
-						
-						fos.write(line.getBytes(), 0, bytes);
-						System.out.println(line.getBytes());
-					}
-					fos.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}*/		
-				
-				//This code works but it has stuff attached to it so writing doesn't create a valid file. Unless it is text.
-				//We need to find a way to seperate the rest of the body from file text.
-				//This website might be of use
-				//https://leonardom.wordpress.com/2009/08/06/getting-parameters-from-httpexchange/
-				byte[] buffer = new byte[1024];
-				int bytes = 0;
-				FileOutputStream fos = null;
-				try{
-					fos = new FileOutputStream(new File("./testText"));
-				}
-				catch(IOException e){
-					System.out.println("Could not write to file.");
-				}
-				
-				while((bytes = is.read(buffer)) != -1){
-					System.out.println("In write loop" + bytes);
-					fos.write(buffer, 0, bytes);
-				}
-				System.out.println("Outside write loop");
-				fos.close();
-				
-				
-				is.close();
-				t.close();
-				
-				
-			}
-		}
-	}
-	
-	/*
-		This method takes a string and will search the library for files that contain the string.
-		The method then dynamically generates the html and returns it as a string.
-	*/
-	private static String createHTML(String searchString){
-		StringBuilder strBld = new StringBuilder();
-		File folder = new File("./Pictures/");
-		File[] directory = folder.listFiles();
-		strBld.append("<html>\n");
-		strBld.append("<head>\n\n</head>\n");
-		strBld.append("<body>\n");
-		strBld.append("<h1>Results for " + searchString + "</h1>\n");
-		for(int i = 0; i < directory.length; i++){
-			if(directory[i].isFile() && directory[i].getName().contains(searchString)){
-				strBld.append("<img src=\"./Pictures/" +  directory[i].getName() + "\" alt=\"" + directory[i].getName() + "\" style=\"height:300px;\"></br>\n");
-			}
+            long start = System.nanoTime();
+            // respond() takes the request as WebServer reads it: the raw request line and lowercased header names
+            String requestLine = t.getRequestMethod() + " " + t.getRequestURI() + " " + t.getProtocol();
+            Map<String, String> headers = new HashMap<>();
+            for(Map.Entry<String, List<String>> header : t.getRequestHeaders().entrySet())
+                headers.put(header.getKey().toLowerCase(), String.join(",", header.getValue()));
+
+            InetSocketAddress client = t.getRemoteAddress();
+            long admitted = -1;
+            boolean entered = WebServer.admission.enter(client.getAddress());
+            try {
+                WebServer.Response response;
+                if(!entered) {
+                    response = WebServer.TOO_MANY_REQUESTS;
+                } else if((admitted = WebServer.admission.acquire()) < 0) {
+                    response = WebServer.SERVICE_UNAVAILABLE;
+                } else {
+                    try {
+                        response = WebServer.await(WebServer.HttpRequest.respond(requestLine, headers));
+                    } finally {
+                        WebServer.admission.release(admitted);
+                    }
+                }
+                long sending = System.nanoTime();
+                int headBytes = send(t, requestLine, response);
+                WebServer.HttpRequest.recordSent(client.getAddress().getHostAddress() + ":" + client.getPort(),
+                                                 requestLine, response, headBytes, start, sending);
+            } finally {
+                if(entered)
+                    WebServer.admission.leave(client.getAddress());
+                t.close();
+            }
 		}
-		strBld.append("</body>\n");
-		strBld.append("</html>\n");
-		return strBld.toString();
-	}
 
+        /*
+         * sends response with a fixed length, so HttpServer never falls back to chunked encoding. Cached bytes are
+         * written as they are, chunk groups as each arrives, files straight from their channel. Whether there is a
+         * body follows WebServer's rule, so a HEAD gets the same headers as from WebServer and nothing after them.
+         * Returns the size of the head that was sent
+         */
+        private static int send(HttpExchange t, String requestLine, WebServer.Response response) throws IOException {
+            WebServer.HttpRequest.entityHeaders(response, t.getResponseHeaders()::add);
+            boolean withBody = WebServer.HttpRequest.sendsBody(requestLine, response) && response.length > 0;
+            // HttpServer leaves Content-length out of a HEAD's head, WebServer sends it with everything but a 304
+            if(!response.statusLine.contains(" 304 "))
+                t.getResponseHeaders().set("Content-length", String.valueOf(response.length));
+            // -1 tells HttpServer there is no body, 0 would mean one of unknown length
+            t.sendResponseHeaders(Metrics.statusCode(response.statusLine), withBody ? response.length : -1);
+            int headBytes = headBytes(t, response.statusLine);
+            if(!withBody)
+                return headBytes;
+
+            OutputStream out = t.getResponseBody();
+            if(response.body != null) {
+                out.write(response.body, (int) response.offset, (int) response.length);
+            } else if(response.parts != null) {
+                WritableByteChannel channel = Channels.newChannel(out);
+                for(CompletableFuture<ByteBuffer[]> part : response.parts) {
+                    for(ByteBuffer buffer : WebServer.await(part)) {
+                        while(buffer.hasRemaining())
+                            channel.write(buffer);
+                    }
+                }
+            } else {
+                try (FileChannel file = FileChannel.open(response.file.toPath(), StandardOpenOption.READ)) {
+                    WritableByteChannel channel = Channels.newChannel(out);
+                    long position = response.offset;
+                    long end = response.offset + response.length;
+                    while(position < end) {
+                        long sent = file.transferTo(position, end - position, channel);
+                        if(sent <= 0) // only happens at end of file
+                            throw new EOFException(response.file + " shrank while being sent");
+                        position += sent;
+                    }
+                }
+            }
+            out.close();
+            return headBytes;
+        }
+
+        // the status line and every header HttpServer wrote, its own Date and Content-length included
+        private static int headBytes(HttpExchange t, String statusLine) {
+            int bytes = statusLine.length() + 4; // its CRLF and the blank line ending the head
+            for(Map.Entry<String, List<String>> header : t.getResponseHeaders().entrySet()) {
+                for(String value : header.getValue())
+                    bytes += header.getKey().length() + 2 + value.length() + 2;
+            }
+            return bytes;
+        }
+	}
 }
-/*
-for(String s : header.keySet())
-				System.out.println(header.get(s));
-*/
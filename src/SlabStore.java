@@ -0,0 +1,550 @@
+/**
+ * Item storage for CacheNode, laid out like memcached's: values live outside the Java heap in fixed-size pages,
+ * each page cut into equal chunks for one slab class, with chunk sizes growing by GROWTH_FACTOR from class to class.
+ * A value goes in the smallest class its bytes fit. When a class has no free chunk and no memory is left for another
+ * page, its least recently used item is evicted, and a class that has no page at all takes one over from the class
+ * holding the most. Only keys and item bookkeeping are on the heap, so the garbage collector's work doesn't grow
+ * with the bytes cached.
+ *
+ * Expiry is checked lazily when an item is read. Times are kept as epoch milliseconds, so a snapshot written with
+ * snapshot() and read back by load() after a restart expires items when they would have expired anyway.
+ *
+ * Every operation holds the store's lock, as memcached's cache lock did; only copying into or out of a chunk
+ * happens under it, never network or file I/O.
+ */
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+final class SlabStore {
+    private static final int MIN_CHUNK_BYTES = 64;
+    private static final double GROWTH_FACTOR = 1.25;
+    private static final long SNAPSHOT_MAGIC = 0x4d43534e41503031L; // "MCSNAP01"
+    private static final long SNAPSHOT_WINDOW = 256L * 1024 * 1024; // mapped at a time, a file can be larger
+    private static final int SNAPSHOT_BATCH = 4 * 1024 * 1024; // item bytes copied for a snapshot per hold of the lock
+    private static final long RELATIVE_EXPIRY_LIMIT = 60L * 60 * 24 * 30; // exptimes above this are unix times
+
+    // where the caller's output goes, so a value can be copied straight from its chunk to the connection's buffer
+    interface Output {
+        ByteBuffer reserve(int bytes);
+    }
+
+    static final class Item {
+        final String key;
+        final int slabClass;
+        final int page;
+        final int offset;
+        final int length;
+        int flags;
+        long expiresAt; // epoch millis, 0 for never
+        final long storedAt;
+        final long cas;
+        Item newer;     // neighbours in the slab class's LRU list
+        Item older;
+
+        Item(String key, int slabClass, int page, int offset, int length, int flags, long expiresAt, long storedAt, long cas) {
+            this.key = key;
+            this.slabClass = slabClass;
+            this.page = page;
+            this.offset = offset;
+            this.length = length;
+            this.flags = flags;
+            this.expiresAt = expiresAt;
+            this.storedAt = storedAt;
+            this.cas = cas;
+        }
+    }
+
+    private static final class SlabClass {
+        final int chunkSize;
+        long[] free = new long[16]; // page << 32 | offset of every unused chunk, used as a stack
+        int freeCount = 0;
+        int pages = 0;
+        Item newest;
+        Item oldest;
+
+        SlabClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        void push(int page, int offset) {
+            if(freeCount == free.length)
+                free = Arrays.copyOf(free, free.length * 2);
+            free[freeCount++] = (long) page << 32 | offset;
+        }
+    }
+
+    private final int pageSize;
+    private final long memoryLimit;
+    private final SlabClass[] classes;
+    private final List<ByteBuffer> pages = new ArrayList<>();
+    private final HashMap<String, Item> items = new HashMap<>();
+    private long nextCas = 1;
+    private long flushedAt = 0;    // items stored at or before this were invalidated by flush_all
+    private long bytes = 0;
+    private long evictions = 0;
+    private long totalItems = 0;
+
+    /*
+     * pageSize is also the largest value that can be stored, memoryLimit the bytes of pages it may allocate
+     */
+    SlabStore(int pageSize, long memoryLimit) {
+        this.pageSize = pageSize;
+        this.memoryLimit = Math.max(memoryLimit, pageSize);
+        List<SlabClass> sizes = new ArrayList<>();
+        for(double size = MIN_CHUNK_BYTES; size < pageSize; size *= GROWTH_FACTOR) {
+            int chunk = ((int) size + 7) & ~7;
+            if(sizes.isEmpty() || sizes.get(sizes.size() - 1).chunkSize < chunk)
+                sizes.add(new SlabClass(chunk));
+        }
+        sizes.add(new SlabClass(pageSize));
+        this.classes = sizes.toArray(new SlabClass[0]);
+    }
+
+    int maxItemBytes() {
+        return pageSize;
+    }
+
+    /*
+     * copies the value of key into out, with the header a get (or gets) response puts in front of it.
+     * Returns false if there is no such item or it expired
+     */
+    synchronized boolean get(String key, boolean withCas, Output out) {
+        Item item = live(key);
+        if(item == null)
+            return false;
+        touchLru(item);
+        byte[] header = ("VALUE " + key + " " + Integer.toUnsignedString(item.flags) + " " + item.length
+                         + (withCas ? " " + item.cas : "") + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer buffer = out.reserve(header.length + item.length + 2);
+        buffer.put(header);
+        buffer.put(chunk(item));
+        buffer.put((byte) '\r').put((byte) '\n');
+        return true;
+    }
+
+    /*
+     * stores data under key for the storage commands: "set", "add", "replace", "append", "prepend" and "cas"
+     * (which only stores if the item's cas is still casUnique). Returns the protocol's reply
+     */
+    synchronized String store(String command, String key, int flags, long exptime, long casUnique, ByteBuffer data) {
+        Item existing = live(key);
+        switch(command) {
+            case "add":
+                if(existing != null) {
+                    touchLru(existing);
+                    return "NOT_STORED";
+                }
+                break;
+            case "replace":
+            case "append":
+            case "prepend":
+                if(existing == null)
+                    return "NOT_STORED";
+                break;
+            case "cas":
+                if(existing == null)
+                    return "NOT_FOUND";
+                if(existing.cas != casUnique)
+                    return "EXISTS";
+                break;
+            default: // set
+        }
+
+        if(command.equals("append") || command.equals("prepend")) {
+            int length = existing.length + data.remaining();
+            if(length > pageSize)
+                return "SERVER_ERROR object too large for cache";
+            ByteBuffer joined = ByteBuffer.allocate(length);
+            if(command.equals("append"))
+                joined.put(chunk(existing)).put(data);
+            else
+                joined.put(data).put(chunk(existing));
+            joined.flip();
+            return put(key, existing.flags, existing.expiresAt, joined) ? "STORED" : "SERVER_ERROR out of memory storing object";
+        }
+        if(data.remaining() > pageSize)
+            return "SERVER_ERROR object too large for cache";
+        return put(key, flags, expiresAt(exptime), data) ? "STORED" : "SERVER_ERROR out of memory storing object";
+    }
+
+    synchronized boolean delete(String key) {
+        Item item = live(key);
+        if(item == null)
+            return false;
+        remove(item);
+        return true;
+    }
+
+    /*
+     * adds delta to (or subtracts it from, not going below 0) a value holding a decimal number. Returns the new
+     * number, "NOT_FOUND", or a CLIENT_ERROR if the value isn't a number
+     */
+    synchronized String incr(String key, long delta, boolean decrement) {
+        Item item = live(key);
+        if(item == null)
+            return "NOT_FOUND";
+        String text = StandardCharsets.ISO_8859_1.decode(chunk(item)).toString().trim();
+        long value;
+        try {
+            value = Long.parseUnsignedLong(text);
+        } catch (NumberFormatException e) {
+            return "CLIENT_ERROR cannot increment or decrement non-numeric value";
+        }
+        if(decrement)
+            value = Long.compareUnsigned(value, delta) < 0 ? 0 : value - delta;
+        else
+            value += delta; // wraps at 2^64 like memcached
+        String result = Long.toUnsignedString(value);
+        put(key, item.flags, item.expiresAt, ByteBuffer.wrap(result.getBytes(StandardCharsets.ISO_8859_1)));
+        return result;
+    }
+
+    synchronized boolean touch(String key, long exptime) {
+        Item item = live(key);
+        if(item == null)
+            return false;
+        item.expiresAt = expiresAt(exptime);
+        touchLru(item);
+        return true;
+    }
+
+    // invalidates every item stored until now, or until delaySeconds from now
+    synchronized void flushAll(long delaySeconds) {
+        flushedAt = System.currentTimeMillis() + delaySeconds * 1000;
+    }
+
+    synchronized long size() {
+        return items.size();
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    synchronized long evictions() {
+        return evictions;
+    }
+
+    synchronized long totalItems() {
+        return totalItems;
+    }
+
+    long memoryLimit() {
+        return memoryLimit;
+    }
+
+    /*
+     * writes every live item to file through memory-mapped windows, least recently used first so load() restores
+     * the LRU order too. The file is written beside the old one and moved over it, so a crash mid-write keeps the
+     * previous snapshot. The lock is only held to list the items and then to copy SNAPSHOT_BATCH bytes of them at a
+     * time into a heap buffer, the mapping, writing and forcing happen outside it, so gets and sets go on meanwhile.
+     * An item removed or replaced before its batch is copied is left out. Returns the number of items written
+     */
+    long snapshot(Path file) throws IOException {
+        List<Item> order = new ArrayList<>();
+        long size = 16;
+        long largest = 0;
+        synchronized(this) {
+            long now = System.currentTimeMillis();
+            for(SlabClass slabClass : classes) {
+                for(Item item = slabClass.oldest; item != null; item = item.newer) {
+                    if(!expired(item, now)) {
+                        order.add(item);
+                        size += record(item);
+                        largest = Math.max(largest, record(item));
+                    }
+                }
+            }
+        }
+
+        long count = 0;
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // items left out make the file longer than its records, load() stops after count of them
+            MappedWindows out = new MappedWindows(channel, FileChannel.MapMode.READ_WRITE, size);
+            out.ensure(16).putLong(SNAPSHOT_MAGIC).putLong(0);
+            ByteBuffer batch = ByteBuffer.allocate((int) Math.max(SNAPSHOT_BATCH, largest));
+            int next = 0;
+            while(next < order.size()) {
+                batch.clear();
+                synchronized(this) {
+                    long now = System.currentTimeMillis();
+                    for(; next < order.size() && record(order.get(next)) <= batch.remaining(); next++) {
+                        Item item = order.get(next);
+                        if(items.get(item.key) != item || expired(item, now))
+                            continue;
+                        byte[] key = item.key.getBytes(StandardCharsets.UTF_8);
+                        batch.putShort((short) key.length).put(key).putInt(item.flags).putLong(item.expiresAt)
+                             .putInt(item.length).put(chunk(item));
+                        count++;
+                    }
+                }
+                batch.flip();
+                out.write(batch);
+            }
+            out.force();
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, 16);
+            header.putLong(8, count);
+            header.force();
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    /*
+     * stores every item of a snapshot written by snapshot() that hasn't expired since. Returns how many were stored
+     */
+    synchronized long load(Path file) throws IOException {
+        long now = System.currentTimeMillis();
+        long loaded = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedWindows in = new MappedWindows(channel, FileChannel.MapMode.READ_ONLY, channel.size());
+            ByteBuffer header = in.ensure(16);
+            if(header.getLong() != SNAPSHOT_MAGIC)
+                throw new IOException(file + " isn't a cache snapshot");
+            long count = header.getLong();
+            for(long i = 0; i < count; i++) {
+                int keyLength = in.ensure(2).getShort() & 0xffff;
+                ByteBuffer window = in.ensure(keyLength + 16);
+                byte[] key = new byte[keyLength];
+                window.get(key);
+                int flags = window.getInt();
+                long expiresAt = window.getLong();
+                int length = window.getInt();
+                ByteBuffer data = in.ensure(length);
+                ByteBuffer value = data.slice();
+                value.limit(length);
+                data.position(data.position() + length);
+                if((expiresAt == 0 || expiresAt > now) && length <= pageSize
+                   && put(new String(key, StandardCharsets.UTF_8), flags, expiresAt, value))
+                    loaded++;
+            }
+        }
+        return loaded;
+    }
+
+    // bytes a snapshot record of item takes
+    private static long record(Item item) {
+        return 2 + item.key.getBytes(StandardCharsets.UTF_8).length + 4 + 8 + 4 + item.length;
+    }
+
+    /*
+     * a file read or written through mappings of at most SNAPSHOT_WINDOW bytes, moved along as records are
+     * consumed. No record is larger than a window
+     */
+    private static final class MappedWindows {
+        private final FileChannel channel;
+        private final FileChannel.MapMode mode;
+        private final long size;
+        private long windowStart = 0;
+        private MappedByteBuffer window;
+
+        MappedWindows(FileChannel channel, FileChannel.MapMode mode, long size) throws IOException {
+            this.channel = channel;
+            this.mode = mode;
+            this.size = size;
+            this.window = channel.map(mode, 0, Math.min(size, SNAPSHOT_WINDOW));
+        }
+
+        ByteBuffer ensure(long bytes) throws IOException {
+            if(window.remaining() < bytes) {
+                if(mode == FileChannel.MapMode.READ_WRITE)
+                    window.force();
+                windowStart += window.position();
+                if(windowStart + bytes > size)
+                    throw new EOFException("snapshot ends in the middle of a record");
+                window = channel.map(mode, windowStart, Math.min(size - windowStart, Math.max(bytes, SNAPSHOT_WINDOW)));
+            }
+            return window;
+        }
+
+        // writes bytes from where the last write ended on, across as many windows as they take
+        void write(ByteBuffer bytes) throws IOException {
+            while(bytes.hasRemaining()) {
+                ByteBuffer window = ensure(1);
+                ByteBuffer piece = bytes.duplicate();
+                piece.limit(piece.position() + Math.min(window.remaining(), bytes.remaining()));
+                window.put(piece);
+                bytes.position(piece.position());
+            }
+        }
+
+        void force() {
+            window.force();
+        }
+    }
+
+    // the item stored under key, unless it expired or was flushed, in which case it is removed
+    private Item live(String key) {
+        Item item = items.get(key);
+        if(item != null && expired(item, System.currentTimeMillis())) {
+            remove(item);
+            return null;
+        }
+        return item;
+    }
+
+    private boolean expired(Item item, long now) {
+        return (item.expiresAt != 0 && item.expiresAt <= now) || (flushedAt != 0 && item.storedAt <= flushedAt && flushedAt <= now);
+    }
+
+    // memcached's exptime: 0 never, up to 30 days seconds from now, anything larger a unix time, negative already past
+    private static long expiresAt(long exptime) {
+        if(exptime == 0)
+            return 0;
+        if(exptime < 0)
+            return 1;
+        if(exptime <= RELATIVE_EXPIRY_LIMIT)
+            return System.currentTimeMillis() + exptime * 1000;
+        return exptime * 1000;
+    }
+
+    /*
+     * stores value as a new item, replacing any item under key. Returns false if no chunk can be found for it
+     */
+    private boolean put(String key, int flags, long expiresAt, ByteBuffer value) {
+        int length = value.remaining();
+        int slabClass = classFor(length);
+        Item existing = items.get(key);
+        if(existing != null)
+            remove(existing);
+        long chunk = allocate(slabClass);
+        if(chunk < 0)
+            return false;
+        int page = (int) (chunk >>> 32);
+        int offset = (int) chunk;
+        ByteBuffer target = pages.get(page).duplicate();
+        target.position(offset);
+        target.put(value);
+
+        Item item = new Item(key, slabClass, page, offset, length, flags, expiresAt, System.currentTimeMillis(), nextCas++);
+        items.put(key, item);
+        linkNewest(item);
+        bytes += length;
+        totalItems++;
+        return true;
+    }
+
+    private int classFor(int length) {
+        int low = 0;
+        int high = classes.length - 1;
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            if(classes[middle].chunkSize >= length)
+                high = middle;
+            else
+                low = middle + 1;
+        }
+        return low;
+    }
+
+    /*
+     * a free chunk of slabClass: from its free list, from a new page, by evicting its least recently used item, or
+     * by taking a page over from another class. -1 if none of those works
+     */
+    private long allocate(int slabClass) {
+        SlabClass target = classes[slabClass];
+        if(target.freeCount == 0 && (long) (pages.size() + 1) * pageSize <= memoryLimit)
+            addPage(slabClass, pages.size(), ByteBuffer.allocateDirect(pageSize));
+        if(target.freeCount == 0 && target.oldest != null) {
+            evictions++;
+            remove(target.oldest);
+        }
+        if(target.freeCount == 0 && target.pages == 0)
+            reassignPage(slabClass);
+        if(target.freeCount == 0)
+            return -1;
+        return target.free[--target.freeCount];
+    }
+
+    private void addPage(int slabClass, int page, ByteBuffer memory) {
+        SlabClass owner = classes[slabClass];
+        if(page == pages.size())
+            pages.add(memory);
+        owner.pages++;
+        for(int offset = 0; offset + owner.chunkSize <= pageSize; offset += owner.chunkSize)
+            owner.push(page, offset);
+    }
+
+    /*
+     * empties the page holding the least recently used item of the class with the most pages, and hands it to
+     * slabClass. Every item on that page is evicted
+     */
+    private void reassignPage(int slabClass) {
+        int donor = -1;
+        for(int i = 0; i < classes.length; i++) {
+            if(i != slabClass && classes[i].oldest != null && (donor < 0 || classes[i].pages > classes[donor].pages))
+                donor = i;
+        }
+        if(donor < 0)
+            return;
+        SlabClass from = classes[donor];
+        int page = from.oldest.page;
+        for(Item item = from.oldest; item != null; ) {
+            Item newer = item.newer;
+            if(item.page == page) {
+                evictions++;
+                remove(item);
+            }
+            item = newer;
+        }
+        int kept = 0;
+        for(int i = 0; i < from.freeCount; i++) {
+            if((int) (from.free[i] >>> 32) != page)
+                from.free[kept++] = from.free[i];
+        }
+        from.freeCount = kept;
+        from.pages--;
+        addPage(slabClass, page, pages.get(page));
+    }
+
+    private void remove(Item item) {
+        items.remove(item.key, item);
+        unlink(item);
+        classes[item.slabClass].push(item.page, item.offset);
+        bytes -= item.length;
+    }
+
+    // a read-only view of item's bytes in its page
+    private ByteBuffer chunk(Item item) {
+        ByteBuffer view = pages.get(item.page).duplicate();
+        view.limit(item.offset + item.length).position(item.offset);
+        return view;
+    }
+
+    private void touchLru(Item item) {
+        unlink(item);
+        linkNewest(item);
+    }
+
+    private void linkNewest(Item item) {
+        SlabClass slabClass = classes[item.slabClass];
+        item.older = slabClass.newest;
+        item.newer = null;
+        if(slabClass.newest != null)
+            slabClass.newest.newer = item;
+        slabClass.newest = item;
+        if(slabClass.oldest == null)
+            slabClass.oldest = item;
+    }
+
+    private void unlink(Item item) {
+        SlabClass slabClass = classes[item.slabClass];
+        if(item.older != null)
+            item.older.newer = item.newer;
+        else
+            slabClass.oldest = item.newer;
+        if(item.newer != null)
+            item.newer.older = item.older;
+        else
+            slabClass.newest = item.older;
+        item.newer = null;
+        item.older = null;
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * Builds the executor that connections are handed to, picked with -Dserver.engine.
+ * "virtual" gives every connection its own virtual thread so blocked sockets and cache gets don't hold on to a
+ * platform thread. Virtual threads only exist from Java 21 on, so they are looked up reflectively and older JVMs fall
+ * back to the fixed pool with a warning.
+ * The fixed pool's queue holds at most queueSize tasks, beyond that execute throws RejectedExecutionException so the
+ * caller can turn the connection away (see AdmissionControl). 0 leaves it unbounded.
+ */
+import java.util.concurrent.*;
+
+final class ThreadPools {
+    private ThreadPools() {}
+
+    static ExecutorService forEngine(String engine, int poolSize, int queueSize) {
+        if(engine.equals("virtual")) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("virtual threads need Java 21 or newer, using a pool of " + poolSize + " threads");
+            }
+        } else if(!engine.equals("pool")) {
+            System.err.println("unsupported engine " + engine + ", using a pool of " + poolSize + " threads");
+        }
+        return new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                                      queueSize > 0 ? new ArrayBlockingQueue<>(queueSize) : new LinkedBlockingQueue<>());
+    }
+
+    // tasks waiting for a thread, 0 for executors without a queue such as virtual threads
+    static int queueDepth(Executor executor) {
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getQueue().size() : 0;
+    }
+}
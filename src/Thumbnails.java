@@ -0,0 +1,83 @@
+/**
+ * Scaled-down copies of the pictures for the search results pages, which otherwise download every original just to
+ * show it 300px high. Thumbnails are rendered with ImageIO on their own bounded pool, so a burst of new pictures
+ * can't starve file reads or pile up unbounded work, and are cached like files under "thumb:height:path".
+ * PNGs and GIFs are rendered to PNG to keep their transparency, everything else to JPEG. Pictures no taller than a
+ * thumbnail are served as they are, in their own format.
+ */
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.concurrent.*;
+
+final class Thumbnails {
+    final int height;
+    final ThreadPoolExecutor pool;
+
+    Thumbnails(int height, int threads, int queueSize) {
+        this.height = height;
+        // excess work is rejected rather than queued, the caller can send the original instead
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize),
+                                           r -> {
+                                               Thread thread = new Thread(r, "thumbnails");
+                                               thread.setDaemon(true);
+                                               return thread;
+                                           });
+    }
+
+    // a thumbnail's bytes and the type they are encoded in
+    static final class Thumbnail {
+        final byte[] data;
+        final String contentType;
+
+        Thumbnail(byte[] data, String contentType) {
+            this.data = data;
+            this.contentType = contentType;
+        }
+    }
+
+    String key(String path) {
+        return "thumb:" + height + ":" + path;
+    }
+
+    /*
+     * the thumbnail of picture, no taller than height. A picture that is already small enough is returned as it is,
+     * with its own content type, unless it is in a format the server has no content type for (BMP, TIFF, ...), which
+     * is re-encoded at its own size
+     */
+    Thumbnail render(File picture) throws IOException {
+        BufferedImage original = ImageIO.read(picture);
+        if(original == null)
+            throw new IOException(picture + " isn't an image ImageIO can read");
+        String type = WebServer.HttpRequest.knownContentType(picture.getName().toLowerCase());
+        if(original.getHeight() <= height && type != null && type.startsWith("image/"))
+            return new Thumbnail(Files.readAllBytes(picture.toPath()), type);
+        boolean png = png(picture.getName());
+        int targetHeight = Math.min(height, original.getHeight());
+        int targetWidth = Math.max(1, (int) Math.round((double) original.getWidth() * targetHeight / original.getHeight()));
+
+        boolean alpha = png && original.getColorModel().hasAlpha();
+        BufferedImage scaled = new BufferedImage(targetWidth, targetHeight, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            // without alpha, transparent pixels are painted white instead of coming out black
+            graphics.drawImage(original, 0, 0, targetWidth, targetHeight, alpha ? null : Color.WHITE, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if(!ImageIO.write(scaled, png ? "png" : "jpg", out))
+            throw new IOException("no ImageIO writer for " + (png ? "png" : "jpg"));
+        return new Thumbnail(out.toByteArray(), png ? "image/png" : "image/jpeg");
+    }
+
+    private static boolean png(String name) {
+        String lower = name.toLowerCase();
+        return lower.endsWith(".png") || lower.endsWith(".gif");
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Keeps idle keep-alive connections to the backend web servers so the dispatcher's proxy mode doesn't pay a TCP
+ * handshake per forwarded request. Connections are handed out most recently used first, and ones that have sat idle
+ * longer than the backend's keep-alive timeout are closed instead of reused.
+ */
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+final class UpstreamPool {
+    private final ConcurrentHashMap<String, ConcurrentLinkedDeque<Upstream>> idle = new ConcurrentHashMap<>();
+    private final int maxIdlePerHost;
+    private final long maxIdleMillis;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+
+    /*
+     * a connection to one backend. reused tells the caller it came from the pool, so a failure on its first use may
+     * just mean the backend closed it in the meantime
+     */
+    static final class Upstream {
+        final String host;
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        boolean reused = false;
+        long idleSince;
+
+        private Upstream(String host, Socket socket) throws IOException {
+            this.host = host;
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+    }
+
+    UpstreamPool(int maxIdlePerHost, long maxIdleMillis, int connectTimeoutMillis, int readTimeoutMillis) {
+        this.maxIdlePerHost = maxIdlePerHost;
+        this.maxIdleMillis = maxIdleMillis;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    /*
+     * returns an idle connection to host ("name:port") if there is a fresh one, otherwise opens a new one.
+     * allowReuse false always opens a new connection
+     */
+    Upstream borrow(String host, boolean allowReuse) throws IOException {
+        if(allowReuse) {
+            ConcurrentLinkedDeque<Upstream> pooled = idle.get(host);
+            Upstream upstream;
+            while(pooled != null && (upstream = pooled.pollFirst()) != null) {
+                if(System.currentTimeMillis() - upstream.idleSince < maxIdleMillis && !upstream.socket.isClosed()) {
+                    upstream.reused = true;
+                    return upstream;
+                }
+                upstream.close();
+            }
+        }
+
+        int colon = host.lastIndexOf(':');
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host.substring(0, colon), Integer.parseInt(host.substring(colon + 1))), connectTimeoutMillis);
+            socket.setSoTimeout(readTimeoutMillis);
+            socket.setTcpNoDelay(true);
+            return new Upstream(host, socket);
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /*
+     * puts a connection whose last response was read completely back in the pool
+     */
+    void release(Upstream upstream) {
+        ConcurrentLinkedDeque<Upstream> pooled = idle.computeIfAbsent(upstream.host, h -> new ConcurrentLinkedDeque<>());
+        if(pooled.size() >= maxIdlePerHost) {
+            upstream.close();
+            return;
+        }
+        upstream.idleSince = System.currentTimeMillis();
+        pooled.offerFirst(upstream);
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Remembers the current version of every cached file: its modification time, its length and a strong ETag hashed
+ * from the content. The hash is computed once, when the file is stored in memcached, and stored there alongside it,
+ * so a conditional request for a known version can be answered with a 304 before any of the body is fetched.
+ */
+import java.security.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+final class Validators {
+    private static final class Version {
+        final long lastModified;
+        final long length;
+        final String etag;
+
+        Version(long lastModified, long length, String etag) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.etag = etag;
+        }
+    }
+
+    // one entry per file path, replaced whenever the file changes, so it never outgrows the pictures directory
+    private final ConcurrentHashMap<String, Version> versions = new ConcurrentHashMap<>();
+
+    /*
+     * the ETag of key if the version on disk (lastModified, length) is the one that was hashed, otherwise null
+     */
+    String etag(String key, long lastModified, long length) {
+        Version version = versions.get(key);
+        if(version == null || version.lastModified != lastModified || version.length != length)
+            return null;
+        return version.etag;
+    }
+
+    void record(String key, long lastModified, long length, String etag) {
+        versions.put(key, new Version(lastModified, length, etag));
+    }
+
+    static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is required of every JVM", e);
+        }
+    }
+
+    static String etag(byte[] content) {
+        MessageDigest digest = digest();
+        digest.update(content);
+        return etag(digest);
+    }
+
+    // a quoted hex digest, as an ETag header wants it
+    static String etag(MessageDigest digest) {
+        StringBuilder etag = new StringBuilder("\"");
+        for(byte b : digest.digest())
+            etag.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return etag.append('"').toString();
+    }
+}
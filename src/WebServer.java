@@ -1,38 +1,359 @@
 /**
  * Implements a simple multi-threaded web server that will accept requests and responds to only the filename in the header lines. 
- * It will spawn a default maximum of 10 threads for simultaneous connections to avoid overloading the host machine
+ * It will spawn a default maximum of 10 threads for simultaneous connections to avoid overloading the host machine,
+ * unless -Dserver.engine selects a virtual thread per connection ("virtual") or a single NIO selector ("nio")
  * This operates under the assumption that the method is always GET. 
  * @author Abe Ramseyer
  * 9/28/2017
  */
 import net.spy.memcached.*;
+import net.spy.memcached.internal.OperationFuture;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+import java.time.format.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.lang.NumberFormatException;
 
 public final class WebServer {
-    static final String MEMCACHED_HOST = "10.110.10.170";
-    static final int MEMCACHED_PORT = 12250;
+    // the memcached server used when -Dmemcached.servers doesn't list several, overridable so the servers can be run
+    // against a local memcached, e.g. by bench/run-local.sh
+    static final String MEMCACHED_HOST = System.getProperty("memcached.host", "10.110.10.170");
+    static final String PICTURES_DIR = "pictures";
+    // where the access log goes by default, never served and not watched by pathCache, whose watch would otherwise
+    // fire on every write to the log
+    static final String LOGS_DIR = "logs";
+    static final int MEMCACHED_PORT = Integer.getInteger("memcached.port", 12250);
+    // room next to a file's bytes in a cached value and memcached's item: the CachedFile header and ETag, memcached's
+    // item header and the key
+    static final long VALUE_OVERHEAD_BYTES = 1024;
+    // cache.maxValueBytes is the largest value memcached takes (-I 2m in the makefile, cachenode.maxItemBytes), files
+    // that wouldn't fit in it with their envelope are stored in chunks instead
+    static final long MAX_CACHED_BYTES = Long.getLong("cache.maxValueBytes", 2L * 1024 * 1024) - VALUE_OVERHEAD_BYTES;
+    // files above this size aren't worth the cache space, they are sent straight from disk
+    static final long MAX_CHUNKED_BYTES = Long.getLong("cache.maxChunkedBytes", 64L * 1024 * 1024);
+    // with -Dmemcached.embedded=true the server runs its own cache node on MEMCACHED_PORT and uses that
+    static final boolean EMBEDDED_MEMCACHED = Boolean.getBoolean("memcached.embedded");
+    // how long a thread waits for a response or a chunk before giving up on it: a few memcached round trips past
+    // their timeout, and time for a disk read or a thumbnail
+    static final long RESPONSE_TIMEOUT_MILLIS = Long.getLong("server.responseTimeoutMillis",
+                                                             Long.getLong("memcached.opTimeoutMillis", 1000L) + 10000);
+    static CacheCluster cacheCluster;
     static MemcachedClient memcachedClient;
+    static CacheNode cacheNode;
+    static ChunkedStore chunkedStore;
+    static ExecutorService pool;
+    static PictureIndex pictureIndex;
+    // what request targets resolve to, so known paths and known misses skip locateFile and the file system
+    static PathCache pathCache;
+    static Thumbnails thumbnails;
+    static final Validators validators = new Validators();
 
-    private static void putInCache(String key, byte[] value) {
-        memcachedClient.set(key, 0, value);
+    // in-process cache in front of memcached, sizes can be overridden with -Dl1.maxBytes and -Dl1.ttlSeconds
+    static final NearCache nearCache = new NearCache(Long.getLong("l1.maxBytes", 64L * 1024 * 1024),
+                                                     Long.getLong("l1.ttlSeconds", 300L) * 1000);
+    // rendered search pages by query, versioned by the picture index instead of a file mtime
+    static final NearCache searchCache = new NearCache(Long.getLong("search.cacheBytes", 8L * 1024 * 1024),
+                                                       Long.getLong("l1.ttlSeconds", 300L) * 1000);
+
+    // counters and per-stage latencies (in microseconds) for the admin metrics path
+    static final Metrics metrics = new Metrics();
+    static final Metrics.Histogram parseTime = metrics.histogram("stage.parse");
+    static final Metrics.Histogram locateTime = metrics.histogram("stage.locate");
+    static final Metrics.Histogram memcachedGetTime = metrics.histogram("stage.memcachedGet");
+    static final Metrics.Histogram memcachedSetTime = metrics.histogram("stage.memcachedSet");
+    static final Metrics.Histogram sendTime = metrics.histogram("stage.send");
+    static final Metrics.Histogram requestTime = metrics.histogram("request");
+    static final LongAdder bytesServed = metrics.counter("bytes.served");
+    private static final LongAdder memcachedHits = metrics.counter("memcached.hits");
+    private static final LongAdder memcachedMisses = metrics.counter("memcached.misses");
+    // bounded connection queue, queue deadline and adaptive request limit. Clients are usually dispatchers, which
+    // hold many connections each, so there is no per-client limit unless -Dadmission.maxPerClient sets one
+    static final AdmissionControl admission = new AdmissionControl(metrics, 0);
+    // answers to requests admission turns away, sent with Retry-After and the connection closed
+    static final Response SERVICE_UNAVAILABLE = new Response(AdmissionControl.UNAVAILABLE, null, new byte[0]);
+    static final Response TOO_MANY_REQUESTS = new Response(AdmissionControl.TOO_MANY_REQUESTS, null, new byte[0]);
+    // one line per request, written in batches by a background thread. -Dlog.file=off turns it off
+    static final AccessLog accessLog = AccessLog.fromProperties(LOGS_DIR + "/access.log");
+
+    /*
+     * stores value (the file, one encoding of it or a thumbnail) in both cache levels, together with its content type
+     * and the version of the file it came from so other servers and later restarts don't have to hash it again.
+     * Identity values' versions are also kept on their own as "lastModified length etag", which lets warm-up check
+     * many files at once without fetching them. The memcached sets are added to sets
+     */
+    private static CachedFile putInCache(String key, String contentType, String encoding, byte[] value, long lastModified,
+                                         long length, String etag, List<OperationFuture<Boolean>> sets) {
+        CachedFile cached = CachedFile.of(contentType, encoding, lastModified, length, etag, value);
+        nearCache.put(key, cached.data, lastModified);
+        sets.add(timed(cacheCluster.set(key, cached)));
+        if(encoding == null)
+            sets.add(timed(cacheCluster.set(etagKey(key), lastModified + " " + length + " " + etag)));
+        return cached;
+    }
+
+    private static OperationFuture<Boolean> timed(OperationFuture<Boolean> set) {
+        long start = System.nanoTime();
+        set.addListener(done -> memcachedSetTime.recordSince(start));
+        return set;
+    }
+
+    static String etagKey(String key) {
+        return key + "#etag";
+    }
+
+    // cache fills in progress, so concurrent misses on the same key wait for one loader instead of each going to
+    // memcached and the disk themselves
+    private static final ConcurrentHashMap<String, CompletableFuture<CachedFile>> pendingLoads = new ConcurrentHashMap<>();
+
+    // file reads run here so neither memcached's callback thread nor the NIO selector ever blocks on the disk
+    static final ExecutorService diskPool = Executors.newFixedThreadPool(Integer.getInteger("disk.threads", 4));
+
+    /*
+     * returns the contents of file in encoding (null for identity), looked up under path's variant key. lastModified
+     * and length are the version of file on disk, as resolved for the request.
+     * Once this completes, validators knows the ETag of the version that was returned
+     */
+    static CompletableFuture<CachedFile> getFromCache(String path, String encoding, File file, long lastModified, long length) {
+        return cached(Encodings.variantKey(path, encoding), path, lastModified, length, diskPool,
+                      load -> loadFromDisk(path, encoding, file, lastModified, load));
+    }
+
+    /*
+     * returns the thumbnail of picture, rendering it on the thumbnail pool the first time. Fails if that pool is
+     * full or the picture can't be read as an image
+     */
+    static CompletableFuture<CachedFile> getThumbnail(File picture) {
+        return getThumbnail(picture, picture.lastModified(), picture.length());
+    }
+
+    static CompletableFuture<CachedFile> getThumbnail(File picture, long lastModified, long length) {
+        String key = thumbnails.key(picture.getPath());
+        return cached(key, key, lastModified, length, thumbnails.pool, load -> {
+            try {
+                Thumbnails.Thumbnail thumbnail = thumbnails.render(picture);
+                String etag = Validators.etag(thumbnail.data);
+                validators.record(key, lastModified, length, etag);
+                load.complete(putInCache(key, thumbnail.contentType, null, thumbnail.data, lastModified, length,
+                                         etag, new ArrayList<>()));
+            } catch (IOException | RuntimeException e) {
+                load.completeExceptionally(e);
+            }
+        });
+    }
+
+    /*
+     * the value stored under key for the version of a file given by lastModified and length, with at most one fetch per cache level. The
+     * ETag stored with it is recorded in validators under owner. Values are looked up once per level, their
+     * envelope says which version of the file they are.
+     * a miss in the in-process cache is single-flighted: the first request for a key checks memcached asynchronously
+     * and, if that misses too, runs fill on executor to produce and store the value, while any concurrent requests for
+     * the same key share its result
+     */
+    private static CompletableFuture<CachedFile> cached(String key, String owner, long lastModified, long length, Executor executor,
+                                                        Consumer<CompletableFuture<CachedFile>> fill) {
+        byte[] value = nearCache.get(key, lastModified);
+        if(value != null) {
+            return CompletableFuture.completedFuture(CachedFile.decode(value));
+        }
+
+        CompletableFuture<CachedFile> load = new CompletableFuture<>();
+        CompletableFuture<CachedFile> pending = pendingLoads.putIfAbsent(key, load);
+        if(pending != null)
+            return pending;
+        load.whenComplete((bytes, e) -> pendingLoads.remove(key, load));
+
+        Runnable miss = () -> {
+            try {
+                executor.execute(() -> fill.accept(load));
+            } catch (RejectedExecutionException e) {
+                load.completeExceptionally(e);
+            }
+        };
+        long getStart = System.nanoTime();
+        BiConsumer<Object, Throwable> onFetched = (fetched, failure) -> {
+            memcachedGetTime.recordSince(getStart);
+            if(failure != null) // memcached is down or timed out, the disk still has the file
+                System.err.println("memcached get failed for " + key + ": " + failure);
+            // only used if it is the version on disk now, values stored before the envelope existed never are
+            CachedFile cached = fetched instanceof CachedFile ? (CachedFile) fetched : null;
+            if(cached != null && cached.lastModified == lastModified && cached.length == length) {
+                validators.record(owner, lastModified, length, cached.etag);
+                nearCache.put(key, cached.data, lastModified);
+                memcachedHits.increment();
+                load.complete(cached);
+            } else {
+                memcachedMisses.increment();
+                miss.run();
+            }
+        };
+        try {
+            cacheCluster.get(key).whenComplete(onFetched);
+        } catch (RuntimeException e) { // the client refused the operation, e.g. its queue is full
+            System.err.println("memcached get failed for " + key + ": " + e);
+            miss.run();
+        }
+        return load;
+    }
+
+    /*
+     * not in the cache, read normally and store the result. Text is compressed into every supported encoding here,
+     * once per version of the file, whichever encoding was asked for
+     */
+    private static void loadFromDisk(String path, String encoding, File file, long lastModified, CompletableFuture<CachedFile> load) {
+        try {
+            byte[] value = Files.readAllBytes(file.toPath()); // sized from the file up front, no intermediate buffers
+            load.complete(storeFile(path, encoding, value, lastModified, new ArrayList<>()));
+        } catch (IOException | RuntimeException e) {
+            load.completeExceptionally(e);
+        }
+    }
+
+    /*
+     * caches the contents of a file as read from disk, with its ETag and, for text, every encoded variant. Returns
+     * the value in encoding (null for identity) and adds the memcached sets to sets
+     */
+    static CachedFile storeFile(String path, String encoding, byte[] value, long lastModified, List<OperationFuture<Boolean>> sets) {
+        String etag = Validators.etag(value);
+        String contentType = HttpRequest.knownContentType(path);
+        validators.record(path, lastModified, value.length, etag);
+        CachedFile requested = putInCache(path, contentType, null, value, lastModified, value.length, etag, sets);
+        if(Encodings.compressible(contentType, value.length)) {
+            for(String variant : Encodings.SUPPORTED) {
+                CachedFile encoded = putInCache(Encodings.variantKey(path, variant), contentType, variant,
+                                                Encodings.encode(value, variant), lastModified, value.length, etag, sets);
+                if(variant.equals(encoding))
+                    requested = encoded;
+            }
+        }
+        return requested;
+    }
+
+    /*
+     * loads the top directory and the pictures into memcached: "foreground" before accepting connections,
+     * "background" while already serving them, "off" not at all
+     */
+    private static void warmUp(String mode) {
+        if(mode.equals("off"))
+            return;
+        CacheWarmer warmer = new CacheWarmer(memcachedClient, chunkedStore, Integer.getInteger("warmup.threads", 4),
+                                             Integer.getInteger("warmup.batchSize", 100),
+                                             Integer.getInteger("warmup.maxInFlight", 32));
+        Runnable warm = () -> warmer.run(".", "./" + PICTURES_DIR);
+        if(mode.equals("foreground")) {
+            warm.run();
+        } else {
+            if(!mode.equals("background"))
+                System.err.println("unknown warmup.mode " + mode + ", warming in the background");
+            Thread thread = new Thread(warm, "cache-warmup");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /*
+     * values the metrics page reads when it is rendered
+     */
+    private static void registerGauges() {
+        metrics.gauge("pool.queue", () -> ThreadPools.queueDepth(pool));
+        metrics.gauge("disk.queue", () -> ThreadPools.queueDepth(diskPool));
+        metrics.gauge("thumbnails.queue", () -> thumbnails.pool.getQueue().size());
+        metrics.gauge("cache.pendingLoads", pendingLoads::size);
+        metrics.gauge("l1.hitRatio", () -> Metrics.ratio(nearCache.hits(), nearCache.hits() + nearCache.misses()));
+        metrics.gauge("memcached.hitRatio", () -> Metrics.ratio(memcachedHits.sum(), memcachedHits.sum() + memcachedMisses.sum()));
+        metrics.gauge("search.hitRatio", () -> Metrics.ratio(searchCache.hits(), searchCache.hits() + searchCache.misses()));
+        metrics.gauge("l1.bytes", nearCache::sizeBytes);
+        metrics.gauge("paths.entries", pathCache::size);
+        metrics.gauge("paths.hitRatio", () -> Metrics.ratio(pathCache.hits(), pathCache.lookups()));
+        metrics.gauge("memcached.servers", cacheCluster::servers);
+        metrics.gauge("memcached.serversDown", cacheCluster::serversDown);
+        metrics.gauge("memcached.replicaHits", cacheCluster::replicaHits);
+        metrics.gauge("chunks.filled", chunkedStore::filled);
+        metrics.gauge("chunks.stored", chunkedStore::chunksStored);
+        if(cacheNode != null) {
+            metrics.gauge("cachenode.items", cacheNode.store()::size);
+            metrics.gauge("cachenode.bytes", cacheNode.store()::bytes);
+            metrics.gauge("cachenode.evictions", cacheNode.store()::evictions);
+        }
+        if(accessLog != null) {
+            metrics.gauge("log.written", accessLog::written);
+            metrics.gauge("log.dropped", accessLog::dropped);
+        }
     }
 
-    private static byte[] getFromCache(String key) {
-        return (byte[]) memcachedClient.get(key);
+    /*
+     * waits for an asynchronous result, at most RESPONSE_TIMEOUT_MILLIS, rethrowing what it failed with
+     */
+    static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get(RESPONSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new InterruptedIOException("no response after " + RESPONSE_TIMEOUT_MILLIS + "ms");
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("request failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting on response");
+        }
     }
     
+    /*
+     * connects to memcached, or starts the embedded cache node, and opens everything else the request path uses:
+     * the picture index, thumbnails and chunked storage. Exits if memcached can't be reached
+     */
+    static void openCaches() {
+        try {
+            if(EMBEDDED_MEMCACHED) {
+                cacheNode = CacheNode.fromProperties();
+                cacheNode.start(MEMCACHED_PORT);
+            }
+            // pages, search results and thumbnails are small and on every visitor's path, they are the keys worth
+            // keeping copies of. Pictures make up most of the cache and are only replicated with -Dmemcached.replicateAll
+            boolean replicateAll = Boolean.getBoolean("memcached.replicateAll");
+            cacheCluster = CacheCluster.fromProperties((EMBEDDED_MEMCACHED ? "127.0.0.1" : MEMCACHED_HOST) + ":" + MEMCACHED_PORT,
+                                                       key -> replicateAll || !key.startsWith("./" + PICTURES_DIR + "/"));
+            memcachedClient = cacheCluster.client;
+        } catch (IOException e) {
+            e.printStackTrace(); 
+            System.err.println("\n\n could not connect to memcached host, exiting.");
+            System.exit(1);
+        }
+        pictureIndex = PictureIndex.open("./" + PICTURES_DIR + "/");
+        pathCache = PathCache.open(".", Collections.singleton(LOGS_DIR), Integer.getInteger("paths.maxEntries", 10000), Long.getLong("paths.missTtlMillis", 2000L),
+                                   HttpRequest::resolveTarget);
+        thumbnails = new Thumbnails(Integer.getInteger("thumb.height", 300),
+                                    Integer.getInteger("thumb.threads", Runtime.getRuntime().availableProcessors()),
+                                    Integer.getInteger("thumb.queueSize", 64));
+        if(Boolean.getBoolean("thumb.eager")) // render new pictures' thumbnails as they arrive instead of on first request
+            pictureIndex.onAdded(name -> getThumbnail(new File(PICTURES_DIR, name)));
+        chunkedStore = new ChunkedStore(memcachedClient, Integer.getInteger("cache.chunkBytes", 1024 * 1024),
+                                        Integer.getInteger("cache.chunksPerGet", 4), diskPool, validators);
+        warmUp(System.getProperty("warmup.mode", "background"));
+        registerGauges();
+    }
+
     public static void main(String args[]) {
         
         // smaller servers probably have no more than 16 physical cores, note that increasing this
         // beyond the physical core count shouldn't increase performance.
-        final short THREAD_POOL_SIZE = 10;
+        final int THREAD_POOL_SIZE = Integer.getInteger("server.threads", 10);
+        // "pool" (default) and "virtual" hand each connection to a thread, "nio" serves them all from one selector
+        final String ENGINE = System.getProperty("server.engine", "pool");
+        // connections waiting for a thread, more are answered with a 503 right away
+        final int QUEUE_SIZE = Integer.getInteger("server.queueSize", 256);
 
         int port = 0;
-        ExecutorService pool = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
 
         // validate parameters
         if(args.length != 1) {
@@ -46,15 +367,31 @@ public final class WebServer {
             System.err.println("ERR - arg 1");
             System.exit(1);
         }
-        
+
+        openCaches();
+
+        if(ENGINE.equals("nio")) {
+            try {
+                NioServer server = new NioServer(port);
+                System.out.println("\nListening for connections on port " + port + " (nio)..\n");
+                server.run();
+            } catch (IOException e) {
+                System.err.println("Couldn't start server");
+            }
+            return;
+        }
+
+        pool = ThreadPools.forEngine(ENGINE, THREAD_POOL_SIZE, QUEUE_SIZE);
         try {
-            ServerSocket welcomeSocket = new ServerSocket(port); 
+            // opened as a channel so accepted sockets can use gathering writes and transferTo
+            ServerSocketChannel welcomeSocket = ServerSocketChannel.open();
+            welcomeSocket.bind(new InetSocketAddress(port));
             System.out.println("\nListening for connections on port " + port + "..\n");
 
             while(true) {
                 try {
-                    Callable<Void> request = new HttpRequest(welcomeSocket.accept());
-                    pool.submit(request);
+                    Socket socket = welcomeSocket.accept().socket();
+                    admission.submit(pool, socket, new HttpRequest(socket));
                 } catch (IOException e) {
                     System.err.println("Error while creating thread");
                 }
@@ -65,167 +402,147 @@ public final class WebServer {
     
     }
 
+    /*
+     * a fully built response: status line, content type (null if unknown) and a body that is either held in memory,
+     * sent straight from a file on disk, or streamed as groups of cache chunks in order as they arrive.
+     * Responses for files also carry the validators a client can send back in a conditional request, and partial
+     * responses the range of the file they hold
+     */
+    static final class Response {
+        final String statusLine;
+        final String contentType;
+        final byte[] body;  // only one of body, file and parts is set
+        final File file;
+        final long offset;  // where in body or file the response's bytes start
+        final List<CompletableFuture<ByteBuffer[]>> parts;
+        final long length;
+        final String etag;          // null if the content was never hashed
+        final long lastModified;    // 0 if the response isn't a file
+        final String contentRange;  // null unless this is a 206 or 416
+        final String contentEncoding;  // null for identity
+
+        Response(String statusLine, String contentType, byte[] body) {
+            this(statusLine, contentType, body, 0, body.length);
+        }
+
+        Response(String statusLine, String contentType, byte[] body, int offset, int length) {
+            this(statusLine, contentType, body, null, offset, null, length, null, 0, null, null);
+        }
+
+        Response(String statusLine, String contentType, File file, long offset, long length) {
+            this(statusLine, contentType, null, file, offset, null, length, null, 0, null, null);
+        }
+
+        Response(String statusLine, String contentType, List<CompletableFuture<ByteBuffer[]>> parts, long length) {
+            this(statusLine, contentType, null, null, 0, parts, length, null, 0, null, null);
+        }
+
+        private Response(String statusLine, String contentType, byte[] body, File file, long offset,
+                         List<CompletableFuture<ByteBuffer[]>> parts, long length, String etag, long lastModified,
+                         String contentRange, String contentEncoding) {
+            this.statusLine = statusLine;
+            this.contentType = contentType;
+            this.body = body;
+            this.file = file;
+            this.offset = offset;
+            this.parts = parts;
+            this.length = length;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.contentRange = contentRange;
+            this.contentEncoding = contentEncoding;
+        }
+
+        // the same response, sent with ETag (if known), Last-Modified, Cache-Control and Accept-Ranges
+        Response validated(String etag, long lastModified) {
+            return new Response(statusLine, contentType, body, file, offset, parts, length, etag, lastModified, contentRange, contentEncoding);
+        }
+
+        Response withContentRange(String contentRange) {
+            return new Response(statusLine, contentType, body, file, offset, parts, length, etag, lastModified, contentRange, contentEncoding);
+        }
+
+        // the same response, its body being in contentEncoding
+        Response encoded(String contentEncoding) {
+            return new Response(statusLine, contentType, body, file, offset, parts, length, etag, lastModified, contentRange, contentEncoding);
+        }
+    }
+
     /**
-     * Encapsulates a single HTTP request sent by a browser and sends back an appropriate response. Can handle following file extensions: .txt .css .gif .jpg .png
+     * Encapsulates a single client connection and sends back an appropriate response to every HTTP request read from it. Can handle following file extensions: .txt .css .gif .jpg .png
+     * Connections are kept alive per HTTP/1.1, pipelined requests are answered in the order they arrived.
      * Implementing Callable<Void> allows this to be run multi-threaded
      * @author Abe Ramseyer
      * 9/28/2017
      */
-    private static class HttpRequest implements Callable<Void> {
-        private static final String CRLF = "\r\n";
+    static class HttpRequest implements Callable<Void> {
+        static final String CRLF = "\r\n";
+        private static final String STATS_PATH = "/_admin/stats";
+        private static final String METRICS_PATH = "/_admin/metrics";
+        private static final String THUMBS_PATH = "/thumbs/";
+        // how long a kept-alive connection may sit without a new request, and how many requests it may carry
+        static final int IDLE_TIMEOUT_SECONDS = Integer.getInteger("http.idleTimeoutSeconds", 5);
+        static final int MAX_REQUESTS_PER_CONNECTION = Integer.getInteger("http.maxRequestsPerConnection", 100);
+        // how long clients may reuse a file without asking again, after that they revalidate with its ETag
+        static final int MAX_AGE_SECONDS = Integer.getInteger("http.maxAgeSeconds", 300);
+        private static final String CACHE_CONTROL = "public, max-age=" + MAX_AGE_SECONDS;
+        // requests for more ranges than this are answered with the whole file
+        static final int MAX_RANGES = Integer.getInteger("http.maxRanges", 16);
+        private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+                                                                            .withZone(ZoneOffset.UTC);
         private Socket socket;
-        private String fileName;
-        
-        static {
-            try {
-                memcachedClient = new MemcachedClient(new InetSocketAddress(MEMCACHED_HOST, MEMCACHED_PORT));
-            } catch (IOException e) { e.printStackTrace(); }
-        }
- 
-        static {
-            try {
-                memcachedClient = new MemcachedClient(new InetSocketAddress(MEMCACHED_HOST, MEMCACHED_PORT));
-            } catch (IOException e) {
-                e.printStackTrace(); 
-                System.err.println("\n\n could not connect to memcached host, exiting.");
-                System.exit(1);
-            }
-        }
         
         public HttpRequest(Socket socket) { 
             this.socket = socket;
         }
     
         /**
-         * processes an HttpRequest object, including sending the response
+         * processes every request sent on the connection, including sending the responses
          * @retunrs null every time
          */
         @Override
         public Void call() {
             try {
-                BufferedReader inFromClient = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                DataOutputStream outToClient = new DataOutputStream(socket.getOutputStream());
-                
-                String requestLine = inFromClient.readLine();
-
-                StringTokenizer tokens = new StringTokenizer(requestLine);
-                String method = tokens.nextToken();
-
-                //if(method.equals("POST")) {
-					
-                //}
-
-                String requestPage = tokens.nextToken();
-                fileName = requestPage;
-				if(requestPage.contains("=")){	//If there is a search then this method handles it.
-					fileName = requestPage.substring(0, requestPage.lastIndexOf("?"));
-					requestPage = requestPage.substring(requestPage.indexOf("=") + 1, requestPage.length());
-					requestPage = requestPage.replace("+", "");
-					requestPage = requestPage.toLowerCase();
-					System.out.println(requestPage);
-					//^^^Above code gets the search result and deletes spaces and makes it lowercase
-					
-					String html = createHTML(requestPage);//Gets html that is returned
-					//Writes to the viewResults.html page (overwrites file)
-					File file = new File("viewResults.html");
-					FileWriter fw = new FileWriter(file, false);
-					fw.write(html);
-					fw.close();
-					
-					fileName = "viewResults.html";
-				}
-
-                // attempt to open the requested file
-                InputStream fileInputStream = null;
-                File fileObj = null;
-                fileObj = locateFile(fileName);
-                
-                if(fileObj != null) {
-                    fileName = fileObj.getPath();
-                    
-                    if(getFromCache(fileName) == null || fileName.equals("viewResults.html"))	{// if not in the cache, read normally
-                    	fileInputStream = new FileInputStream(fileObj);
-                    	byte[] fileBytes = readAllBytes(fileInputStream);
-                    	putInCache(fileName, fileBytes);
-                    	System.out.println("STORED IN CACHE at: " + fileName);
-                    }
-                    else {
-                    	System.out.println("CACHE HIT");
-                    }
-                    fileInputStream = new ByteArrayInputStream(getFromCache(fileName));
-                }   
-    
-                // Construct the response message
-                String statusLine = "";
-                String contentTypeLine = null;
-                String entityBody = "";
-
-                // normal response
-                if(fileInputStream != null) {
-                    statusLine = "HTTP/1.1 200 OK";
-                    String contentType = contentType(fileName);
-                    if(!contentType.equals("unknown"))
-                        contentTypeLine = "Content-type: " + contentType; // leaves the contentType as null if unkown
-
-                // file not found, build 404 page
-                } else {
-                    statusLine = "HTTP/1.1 404 Not Found";
-                    contentTypeLine = "text/html";
-                    entityBody = "<!DOCTYPE html>\n" +
-                                 "<HTML>\n" +
-                                 "<HEAD>\n" +
-                                 "<TITLE>404 Not Found</TITLE>\n" +
-                                 "</HEAD>\n" +
-                                 "<BODY>The requested file could not be found on the server. Click <a href=\"./index.html\">here</a> to go to home page.\n" +
-                                "<p>You will be automatically redirected in 3 seconds.</p>\n" +
-                                "<SCRIPT>\n" +
-                                "window.setTimeout(function(){ window.location.replace(\'/index.html\'); },3000)\n" + // .replace() because we don't want the browser's back button to return to the 404 page
-                                 "</SCRIPT>" +
-                                 "<BODY>\n" +
-                                 "</HTML>";
-                }
-    
-    
-                // Send the responses
-                outToClient.writeBytes(statusLine + CRLF);
-
-                // see comment in contentType() for explanation
-                //if(contentTypeLine != null)
-                outToClient.writeBytes(contentTypeLine + CRLF + CRLF);
-
-                // log the headers that were sent to client
-                // synchronized ensures the order of print statements won't mix with those in other threads
-//                synchronized(System.out) {
-//                    System.out.println("---------- Begin server response header ------");
-//                    System.out.println(statusLine);
-//                    System.out.println(contentTypeLine);
-//                    System.out.println("---------- End server response header --------\n\n");
-//                }
+                socket.setSoTimeout(IDLE_TIMEOUT_SECONDS * 1000);
+                // ISO-8859-1 maps every byte to one char, so a Content-Length can be skipped char for char
+                BufferedReader inFromClient = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+                SocketChannel outToClient = socket.getChannel();
+                String client = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+
+                int served = 0;
+                boolean keepAlive = true;
+                while(keepAlive) {
+                    String requestLine = inFromClient.readLine();
+                    if(requestLine == null) // client closed the connection
+                        break;
+                    if(requestLine.isEmpty()) // stray CRLF between pipelined requests is allowed by rfc7230 3.5
+                        continue;
+
+                    long start = System.nanoTime();
+                    Map<String, String> headers = readHeaders(inFromClient);
+                    parseTime.recordSince(start);
+                    served++;
+                    keepAlive = isKeepAlive(requestLine, headers) && served < MAX_REQUESTS_PER_CONNECTION && !connectionsWaiting();
 
-                if(fileInputStream != null) {
+                    long admitted = admission.acquire();
+                    if(admitted < 0) {
+                        long sending = System.nanoTime();
+                        recordSent(client, requestLine, SERVICE_UNAVAILABLE, writeResponse(SERVICE_UNAVAILABLE, false, false, outToClient), start, sending);
+                        break;
+                    }
+                    Response response;
                     try {
-                        sendBytes(fileInputStream, outToClient); // handle exceptions thrown by .read() and .write()
-                        fileInputStream.close();
-                        System.out.println("Sent file " + fileName + " to " + socket.getInetAddress() + ":" + socket.getPort() + "\n");
-                    } catch (IOException e) {
-                        System.err.println("Exception while reading and sending file");
+                        response = await(respond(requestLine, headers));
                     } finally {
-                        try {
-                            fileInputStream.close();
-                        } catch (IOException exc) {
-                            // we tried
-                        }
+                        admission.release(admitted);
                     }
-                } else { // entityBody will hold the 404 page if the file doesn't exist
-                    outToClient.writeBytes(entityBody);
+                    long sending = System.nanoTime();
+                    int headBytes = writeResponse(response, keepAlive, sendsBody(requestLine, response), outToClient);
+                    recordSent(client, requestLine, response, headBytes, start, sending);
                 }
-
-                // close data streams
-                inFromClient.close();
-                outToClient.flush();
-                outToClient.close();
-    
     
+            } catch (SocketTimeoutException e) {
+                // idle keep-alive connection, nothing left to answer
             } catch (IOException e) {
                 System.err.println("Error while sending response headers");
                 e.printStackTrace();
@@ -240,48 +557,587 @@ public final class WebServer {
             // necessary for implemented method
             return null;
         }
-    
-        
-        private byte[] readAllBytes(InputStream fileInputStream) {
-        	ByteArrayOutputStream os = new ByteArrayOutputStream();
-        	int nRead;
-        	byte[] data = new byte[4096];
-        	try {
-				while((nRead = fileInputStream.read(data, 0, data.length)) != -1) {
-					os.write(data, 0, nRead);
-				}
-	        	os.flush();
-			} catch (IOException e) {
-				e.printStackTrace();
+
+        /*
+         * builds the response for a single request line. Lookups that have to wait on memcached or the disk complete
+         * the returned future later, so callers that can't block (the NIO selector) never do.
+         * Conditional requests for a version whose ETag is already known are answered before any body is fetched
+         */
+        static CompletableFuture<Response> respond(String requestLine, Map<String, String> headers) {
+            StringTokenizer tokens = new StringTokenizer(requestLine);
+            String method = tokens.nextToken();
+
+            //if(method.equals("POST")) {
+				
+            //}
+
+            String requestPage = tokens.nextToken();
+            String fileName = requestPage;
+            if(requestPage.equals(STATS_PATH))
+                return CompletableFuture.completedFuture(new Response("HTTP/1.1 200 OK", "text/plain; charset=UTF-8", statsBody()));
+            if(requestPage.equals(METRICS_PATH))
+                return CompletableFuture.completedFuture(new Response("HTTP/1.1 200 OK", "text/plain; charset=UTF-8",
+                                                                      metrics.render().getBytes(StandardCharsets.UTF_8)));
+
+            if(requestPage.startsWith(THUMBS_PATH))
+                return thumbnail(requestPage, headers);
+
+			if(requestPage.contains("=")){	//If there is a search then this method handles it.
+				requestPage = requestPage.substring(requestPage.indexOf("=") + 1, requestPage.length());
+				requestPage = requestPage.replace("+", "");
+				requestPage = requestPage.toLowerCase();
+				//^^^Above code gets the search result and deletes spaces and makes it lowercase
+
+				return searchResults(requestPage, Encodings.negotiate(headers.get("accept-encoding")));
 			}
-        	return os.toByteArray();
-		}
 
-		/*
-         * writes the contents of a specified file out to the the client
+            // attempt to open the requested file
+            long locating = System.nanoTime();
+            PathCache.Resolved resolved = pathCache.resolve(fileName);
+            locateTime.recordSince(locating);
+            File fileObj = resolved.file;
+            if(fileObj == null)
+                return CompletableFuture.completedFuture(notFound());
+
+            String path = fileObj.getPath();
+            long length = resolved.length;
+            long lastModified = resolved.lastModified;
+            // files too big to cache are never hashed, only If-Modified-Since applies to them
+            boolean hashed = length <= MAX_CHUNKED_BYTES;
+            // cached text goes out compressed if the client takes it, ranges are always of the identity bytes
+            String encoding = length <= MAX_CACHED_BYTES && !headers.containsKey("range") && Encodings.compressible(knownContentType(path), length)
+                            ? Encodings.negotiate(headers.get("accept-encoding")) : null;
+            String etag = hashed ? Encodings.variantEtag(validators.etag(path, lastModified, length), encoding) : null;
+            if((etag != null || !hashed || !headers.containsKey("if-none-match")) && notModified(headers, etag, lastModified))
+                return CompletableFuture.completedFuture(notModified(etag, lastModified));
+
+            if(!hashed)
+                return CompletableFuture.completedFuture(fromDisk(fileObj, headers, lastModified, length));
+            if(length > MAX_CACHED_BYTES) {
+                return chunkedStore.lookup(path, lastModified, length).thenApply(stored -> {
+                    if(!stored) { // not in the cache yet, send this one from disk while the chunks are stored
+                        chunkedStore.fill(path, fileObj);
+                        return fromDisk(fileObj, headers, lastModified, length);
+                    }
+                    String storedEtag = validators.etag(path, lastModified, length);
+                    if(notModified(headers, storedEtag, lastModified))
+                        return notModified(storedEtag, lastModified);
+                    // only the chunks overlapping a range are fetched
+                    List<long[]> ranges = ranges(headers, storedEtag, lastModified, length);
+                    if(ranges != null)
+                        return partial(ranges, knownContentType(path), null, length, storedEtag, lastModified,
+                                       (from, to) -> chunkedStore.fetch(path, fileObj, lastModified, length, from, to));
+                    return new Response("HTTP/1.1 200 OK", knownContentType(path), chunkedStore.fetch(path, fileObj, lastModified, length, 0, length), length)
+                               .validated(storedEtag, lastModified);
+                });
+            }
+            return getFromCache(path, encoding, fileObj, lastModified, length).thenApply(cached -> found(cached, headers));
+        }
+
+        /*
+         * the byte ranges a request asks for as {first, end} pairs, end exclusive. null means the whole file should be
+         * sent: there is no Range header, it can't be parsed, asks for too many ranges, or If-Range names another
+         * version. An empty list means none of the ranges are in the file (416)
+         */
+        static List<long[]> ranges(Map<String, String> headers, String etag, long lastModified, long length) {
+            String range = headers.get("range");
+            if(range == null || !range.startsWith("bytes="))
+                return null;
+            String ifRange = headers.get("if-range");
+            if(ifRange != null) {
+                if(ifRange.startsWith("\"")) { // an ETag, which has to match strongly
+                    if(!ifRange.equals(etag))
+                        return null;
+                } else {
+                    try {
+                        if(ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond() != lastModified / 1000)
+                            return null;
+                    } catch (DateTimeParseException e) {
+                        return null;
+                    }
+                }
+            }
+
+            String[] specs = range.substring("bytes=".length()).split(",");
+            if(specs.length > MAX_RANGES)
+                return null;
+            List<long[]> ranges = new ArrayList<>();
+            try {
+                for(String spec : specs) {
+                    spec = spec.trim();
+                    int dash = spec.indexOf('-');
+                    if(dash < 0)
+                        return null;
+                    long first, last;
+                    if(dash == 0) { // the last n bytes
+                        long suffix = Long.parseLong(spec.substring(1));
+                        if(suffix == 0)
+                            continue;
+                        first = Math.max(0, length - suffix);
+                        last = length - 1;
+                    } else {
+                        first = Long.parseLong(spec.substring(0, dash));
+                        String lastText = spec.substring(dash + 1);
+                        last = lastText.isEmpty() ? length - 1 : Long.parseLong(lastText);
+                        if(first < 0 || (!lastText.isEmpty() && last < first)) // "500-400" is invalid, not just unsatisfiable
+                            return null;
+                        last = Math.min(last, length - 1);
+                    }
+                    if(first < length)
+                        ranges.add(new long[] { first, last + 1 });
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            return ranges;
+        }
+
+        /*
+         * a 206 for the ranges of a file, or a 416 if there are none. A single range is sent as it is, several as
+         * multipart/byteranges. slice gives the bytes [from, to) of the file without copying whatever holds them,
+         * a single range of a file on disk is sent from the file itself
          */
-        private void sendBytes(InputStream file, DataOutputStream outToClient) throws IOException {
-            byte[] buffer = new byte[1024];
-            int bytes = 0;
-            if(file == null) {
-            	file = new FileInputStream(new File(fileName));
-            	System.err.println("file was lost from cache");
+        private static Response partial(List<long[]> ranges, String contentType, File file, long length, String etag, long lastModified,
+                                        BiFunction<Long, Long, List<CompletableFuture<ByteBuffer[]>>> slice) {
+            if(ranges.isEmpty())
+                return new Response("HTTP/1.1 416 Range Not Satisfiable", null, new byte[0]).validated(etag, lastModified)
+                           .withContentRange("bytes */" + length);
+            if(ranges.size() == 1) {
+                long[] range = ranges.get(0);
+                Response part = file != null
+                    ? new Response("HTTP/1.1 206 Partial Content", contentType, file, range[0], range[1] - range[0])
+                    : new Response("HTTP/1.1 206 Partial Content", contentType, slice.apply(range[0], range[1]), range[1] - range[0]);
+                return part.validated(etag, lastModified).withContentRange(contentRange(range, length));
             }
-            // copy requested file into the socket's output stream using a buffer
-            // synchronize the FileInputStream object so multiple threads can't read from the same file at a time
-            synchronized (file) {
-                while((bytes = file.read(buffer)) != -1) {
-                    outToClient.write(buffer, 0, bytes);
-                }   
+
+            String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+            List<CompletableFuture<ByteBuffer[]>> parts = new ArrayList<>();
+            long total = 0;
+            for(long[] range : ranges) {
+                byte[] partHead = (CRLF + "--" + boundary + CRLF +
+                                   (contentType != null ? "Content-type: " + contentType + CRLF : "") +
+                                   "Content-Range: " + contentRange(range, length) + CRLF + CRLF).getBytes(StandardCharsets.ISO_8859_1);
+                parts.add(CompletableFuture.completedFuture(new ByteBuffer[] { ByteBuffer.wrap(partHead) }));
+                parts.addAll(slice.apply(range[0], range[1]));
+                total += partHead.length + range[1] - range[0];
             }
+            byte[] end = (CRLF + "--" + boundary + "--" + CRLF).getBytes(StandardCharsets.ISO_8859_1);
+            parts.add(CompletableFuture.completedFuture(new ByteBuffer[] { ByteBuffer.wrap(end) }));
+            total += end.length;
+            return new Response("HTTP/1.1 206 Partial Content", "multipart/byteranges; boundary=" + boundary, parts, total)
+                       .validated(etag, lastModified);
         }
-    
+
+        private static String contentRange(long[] range, long length) {
+            return "bytes " + range[0] + "-" + (range[1] - 1) + "/" + length;
+        }
+
+        // a region of a file that isn't cached, read on the disk pool for one part of a multipart response
+        private static List<CompletableFuture<ByteBuffer[]>> readRegion(File file, long from, long to) {
+            return Collections.singletonList(CompletableFuture.supplyAsync(() -> {
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    ByteBuffer region = ByteBuffer.allocate((int) (to - from));
+                    while(region.hasRemaining()) {
+                        if(channel.read(region, from + region.position()) < 0)
+                            throw new EOFException(file + " shrank while being read");
+                    }
+                    region.flip();
+                    return new ByteBuffer[] { region };
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, diskPool));
+        }
+
+        /*
+         * the thumbnail of a picture in the pictures directory, target being THUMBS_PATH and its name. If it can't be
+         * rendered right now, because the thumbnail pool is full or the picture isn't an image ImageIO reads, the
+         * original picture is sent instead
+         */
+        private static CompletableFuture<Response> thumbnail(String target, Map<String, String> headers) {
+            PathCache.Resolved resolved = pathCache.resolve(target);
+            if(resolved.file == null)
+                return CompletableFuture.completedFuture(notFound());
+            File picture = resolved.file;
+            String name = picture.getName();
+            String key = thumbnails.key(picture.getPath());
+            long lastModified = resolved.lastModified;
+            long length = resolved.length;
+            String etag = validators.etag(key, lastModified, length);
+            if(etag != null && notModified(headers, etag, lastModified))
+                return CompletableFuture.completedFuture(notModified(etag, lastModified));
+
+            return getThumbnail(picture, lastModified, length).handle((thumbnail, e) -> {
+                if(e != null) {
+                    System.err.println("no thumbnail for " + picture + ", sending the original: " + e);
+                    return respond("GET /" + PICTURES_DIR + "/" + name + " HTTP/1.1", headers);
+                }
+                return CompletableFuture.completedFuture(found(thumbnail, headers));
+            }).thenCompose(response -> response);
+        }
+
+        /*
+         * whether a conditional request can be answered with 304. If-None-Match takes precedence over
+         * If-Modified-Since as rfc7232 6 requires, and a tag list only matches a version whose ETag is known
+         */
+        private static boolean notModified(Map<String, String> headers, String etag, long lastModified) {
+            String ifNoneMatch = headers.get("if-none-match");
+            if(ifNoneMatch != null) {
+                if(etag == null)
+                    return false;
+                for(String tag : ifNoneMatch.split(",")) {
+                    tag = tag.trim();
+                    if(tag.startsWith("W/")) // weak comparison is what rfc7232 3.2 asks for here
+                        tag = tag.substring(2);
+                    if(tag.equals("*") || tag.equals(etag))
+                        return true;
+                }
+                return false;
+            }
+            String ifModifiedSince = headers.get("if-modified-since");
+            if(ifModifiedSince == null)
+                return false;
+            try {
+                return lastModified / 1000 <= ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+
+        private static Response notModified(String etag, long lastModified) {
+            return new Response("HTTP/1.1 304 Not Modified", null, new byte[0]).validated(etag, lastModified);
+        }
+
+        /*
+         * the results page for a normalized query in encoding (null for identity), rendered straight into the response.
+         * Pages are cached per query and encoding in the in-process cache and in memcached, under the picture index's
+         * version so that any change to the pictures directory makes every cached page miss
+         */
+        private static CompletableFuture<Response> searchResults(String searchString, String encoding) {
+            long version = pictureIndex.version();
+            String baseKey = "search:" + Long.toHexString(version) + ":" + memcachedSafe(searchString);
+            String key = Encodings.variantKey(baseKey, encoding);
+            byte[] page = searchCache.get(key, version);
+            if(page != null)
+                return CompletableFuture.completedFuture(searchPage(page, encoding));
+
+            CompletableFuture<Response> result = new CompletableFuture<>();
+            BiConsumer<Object, Throwable> onFetched = (value, failure) -> {
+                byte[] cached = (byte[]) value;
+                if(failure != null) // memcached is down or timed out, the page can still be rendered
+                    System.err.println("memcached get failed for " + key + ": " + failure);
+                if(cached == null)
+                    cached = renderResults(searchString, baseKey, encoding, version, true);
+                else
+                    searchCache.put(key, cached, version);
+                result.complete(searchPage(cached, encoding));
+            };
+            try {
+                cacheCluster.get(key).whenComplete(onFetched);
+            } catch (RuntimeException e) {
+                byte[] rendered = renderResults(searchString, baseKey, encoding, version, false);
+                result.complete(searchPage(rendered, encoding));
+            }
+            return result;
+        }
+
+        /*
+         * renders a results page and caches it in every encoding, even the smallest pages, so that a request for any
+         * encoding hits next time. Returns the page in encoding
+         */
+        private static byte[] renderResults(String searchString, String baseKey, String encoding, long version, boolean store) {
+            byte[] page = createHTML(searchString).getBytes(StandardCharsets.UTF_8);//Gets html that is returned
+            byte[] requested = page;
+            searchCache.put(baseKey, page, version);
+            if(store)
+                cacheCluster.set(baseKey, page);
+            for(String variant : Encodings.SUPPORTED) {
+                byte[] encoded = Encodings.encode(page, variant);
+                searchCache.put(Encodings.variantKey(baseKey, variant), encoded, version);
+                if(store)
+                    cacheCluster.set(Encodings.variantKey(baseKey, variant), encoded);
+                if(variant.equals(encoding))
+                    requested = encoded;
+            }
+            return requested;
+        }
+
+        private static Response searchPage(byte[] page, String encoding) {
+            return new Response("HTTP/1.1 200 OK", contentType(".html"), page).encoded(encoding);
+        }
+
+        // memcached keys can't hold spaces or control characters and are capped at 250 bytes. '#' starts the suffixes
+        // of derived keys (CacheCluster's copies), so a query holding one is hashed too
+        private static String memcachedSafe(String text) {
+            boolean safe = text.length() <= 200;
+            for(int i = 0; safe && i < text.length(); i++)
+                safe = text.charAt(i) > ' ' && text.charAt(i) < 0x7f && text.charAt(i) != '#';
+            if(safe)
+                return text;
+            try {
+                byte[] digest = java.security.MessageDigest.getInstance("MD5").digest(text.getBytes(StandardCharsets.UTF_8));
+                return "md5-" + new java.math.BigInteger(1, digest).toString(16);
+            } catch (java.security.NoSuchAlgorithmException e) {
+                throw new IllegalStateException("MD5 is required of every JVM", e);
+            }
+        }
+
+        // leaves the contentType as null if unkown
+        static String knownContentType(String fileName) {
+            String contentType = contentType(fileName);
+            return contentType.equals("unknown") ? null : contentType;
+        }
+
+        // a file that isn't cached (yet) and so has no ETag, whole or in the ranges asked for
+        private static Response fromDisk(File file, Map<String, String> headers, long lastModified, long length) {
+            List<long[]> ranges = ranges(headers, null, lastModified, length);
+            if(ranges != null)
+                return partial(ranges, knownContentType(file.getPath()), file, length, null, lastModified,
+                               (from, to) -> readRegion(file, from, to));
+            return new Response("HTTP/1.1 200 OK", knownContentType(file.getPath()), file, 0, length).validated(null, lastModified);
+        }
+
+        /*
+         * the response to a request for a cached value, built from its envelope alone: a 304 if the client has this
+         * version, otherwise the body or the ranges asked for, as views of the cached bytes
+         */
+        private static Response found(CachedFile cached, Map<String, String> headers) {
+            String etag = Encodings.variantEtag(cached.etag, cached.encoding);
+            if(notModified(headers, etag, cached.lastModified))
+                return notModified(etag, cached.lastModified);
+            List<long[]> ranges = ranges(headers, etag, cached.lastModified, cached.bodyLength());
+            if(ranges != null)
+                return partial(ranges, cached.contentType, null, cached.bodyLength(), etag, cached.lastModified,
+                               (from, to) -> Collections.singletonList(CompletableFuture.completedFuture(
+                                   new ByteBuffer[] { ByteBuffer.wrap(cached.data, cached.bodyOffset + (int) (long) from, (int) (to - from)) })));
+            return new Response("HTTP/1.1 200 OK", cached.contentType, cached.data, cached.bodyOffset, cached.bodyLength())
+                       .validated(etag, cached.lastModified).encoded(cached.encoding);
+        }
+
+        // file not found, build 404 page
+        private static Response notFound() {
+            String entityBody = "<!DOCTYPE html>\n" +
+                                "<HTML>\n" +
+                                "<HEAD>\n" +
+                                "<TITLE>404 Not Found</TITLE>\n" +
+                                "</HEAD>\n" +
+                                "<BODY>The requested file could not be found on the server. Click <a href=\"./index.html\">here</a> to go to home page.\n" +
+                               "<p>You will be automatically redirected in 3 seconds.</p>\n" +
+                               "<SCRIPT>\n" +
+                               "window.setTimeout(function(){ window.location.replace(\'/index.html\'); },3000)\n" + // .replace() because we don't want the browser's back button to return to the 404 page
+                                "</SCRIPT>" +
+                                "<BODY>\n" +
+                                "</HTML>";
+            return new Response("HTTP/1.1 404 Not Found", "text/html", entityBody.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /*
+         * the status line and headers, up to and including the blank line. Content-Length is sent with every body so
+         * the client can find its end without the connection being closed
+         */
+        static String responseHead(Response response, boolean keepAlive) {
+            StringBuilder head = new StringBuilder(response.statusLine).append(CRLF);
+            entityHeaders(response, (name, value) -> head.append(name).append(": ").append(value).append(CRLF));
+            // a 304 has no body, a Content-Length there would describe the body it stands for
+            if(!response.statusLine.contains(" 304 "))
+                head.append("Content-Length: ").append(response.length).append(CRLF);
+            if(keepAlive)
+                head.append("Connection: keep-alive").append(CRLF)
+                    .append("Keep-Alive: timeout=").append(IDLE_TIMEOUT_SECONDS).append(", max=").append(MAX_REQUESTS_PER_CONNECTION).append(CRLF);
+            else
+                head.append("Connection: close").append(CRLF);
+            head.append(CRLF);
+            return head.toString();
+        }
+
+        /*
+         * passes the headers describing response's body and its validators to header, as name and value, and for a
+         * request admission turned away when to retry. Framing (Content-Length, Connection) is left to the caller
+         */
+        static void entityHeaders(Response response, BiConsumer<String, String> header) {
+            // see comment in contentType() for explanation
+            if(response.contentType != null)
+                header.accept("Content-type", response.contentType);
+            if(response.lastModified > 0) {
+                if(response.etag != null)
+                    header.accept("ETag", response.etag);
+                header.accept("Last-Modified", HTTP_DATE.format(Instant.ofEpochMilli(response.lastModified)));
+                header.accept("Cache-Control", CACHE_CONTROL);
+                header.accept("Accept-Ranges", "bytes");
+            }
+            if(response.contentRange != null)
+                header.accept("Content-Range", response.contentRange);
+            if(response.contentEncoding != null)
+                header.accept("Content-Encoding", response.contentEncoding);
+            // caches must keep the encodings of text apart
+            if(Encodings.compressible(response.contentType))
+                header.accept("Vary", "Accept-Encoding");
+            if(AdmissionControl.turnedAway(response.statusLine))
+                header.accept("Retry-After", String.valueOf(AdmissionControl.RETRY_AFTER_SECONDS));
+        }
+
+        /*
+         * sends the response without copying the body: cached bytes go out together with the headers in one gathering
+         * write, chunk groups follow the headers as each one arrives, files are handed to the kernel with transferTo.
+         * Without withBody (see sendsBody) only the head is sent. Returns the size of the head that was sent
+         */
+        static int writeResponse(Response response, boolean keepAlive, boolean withBody, SocketChannel outToClient) throws IOException {
+            ByteBuffer head = ByteBuffer.wrap(responseHead(response, keepAlive).getBytes(StandardCharsets.ISO_8859_1));
+            int headBytes = head.remaining();
+            if(!withBody) {
+                while(head.hasRemaining())
+                    outToClient.write(head);
+                return headBytes;
+            }
+            if(response.body != null) {
+                ByteBuffer[] buffers = { head, ByteBuffer.wrap(response.body, (int) response.offset, (int) response.length) };
+                while(hasRemaining(buffers))
+                    outToClient.write(buffers);
+                return headBytes;
+            }
+
+            while(head.hasRemaining())
+                outToClient.write(head);
+            if(response.parts != null) {
+                for(CompletableFuture<ByteBuffer[]> part : response.parts) {
+                    ByteBuffer[] buffers = await(part);
+                    while(hasRemaining(buffers))
+                        outToClient.write(buffers);
+                }
+                return headBytes;
+            }
+            try (FileChannel file = FileChannel.open(response.file.toPath(), StandardOpenOption.READ)) {
+                long position = response.offset;
+                long end = response.offset + response.length;
+                while(position < end) {
+                    long sent = file.transferTo(position, end - position, outToClient);
+                    if(sent <= 0) // only happens at end of file
+                        throw new EOFException(response.file + " shrank while being sent");
+                    position += sent;
+                }
+            }
+            return headBytes;
+        }
+
+        /*
+         * whether the response to requestLine is followed by its body. A HEAD gets the same status and headers,
+         * Content-Length included, but never the body (rfc9110 9.3.2), and a 304 has none to send
+         */
+        static boolean sendsBody(String requestLine, Response response) {
+            return !requestLine.startsWith("HEAD ") && !response.statusLine.contains(" 304 ");
+        }
+
+        /*
+         * counts and logs a response once all of it was written: its status, its bytes and how long sending it and
+         * the whole request (from the end of the request line) took
+         */
+        static void recordSent(String client, String requestLine, Response response, int headBytes, long requestStart, long sendStart) {
+            long now = System.nanoTime();
+            long bytes = headBytes + (sendsBody(requestLine, response) ? response.length : 0);
+            long micros = (now - requestStart) / 1000;
+            sendTime.record((now - sendStart) / 1000);
+            requestTime.record(micros);
+            metrics.status(response.statusLine);
+            bytesServed.add(bytes);
+            if(accessLog != null)
+                accessLog.log(client, requestLine, response.statusLine, bytes, micros, null);
+        }
+
+        // the last buffer can be empty (a 304), so a gathering write is only done when every buffer is
+        static boolean hasRemaining(ByteBuffer[] buffers) {
+            for(ByteBuffer buffer : buffers) {
+                if(buffer.hasRemaining())
+                    return true;
+            }
+            return false;
+        }
+
+        /*
+         * reads the header lines up to the blank line that ends them. Names are lowercased since they're case-insensitive.
+         * A request body is skipped so the next pipelined request starts at the right place
+         */
+        private static Map<String, String> readHeaders(BufferedReader inFromClient) throws IOException {
+            Map<String, String> headers = new HashMap<>();
+            String headerLine;
+            while((headerLine = inFromClient.readLine()) != null && headerLine.length() != 0)
+                parseHeader(headerLine, headers);
+
+            String contentLength = headers.get("content-length");
+            if(contentLength != null) {
+                try {
+                    inFromClient.skip(Long.parseLong(contentLength));
+                } catch (NumberFormatException e) {
+                    throw new IOException("bad Content-Length " + contentLength);
+                }
+            }
+            return headers;
+        }
+
+        /*
+         * with a fixed pool, an idle kept-alive connection holds a thread that queued connections are waiting for,
+         * so keep-alive is only offered while nobody is waiting
+         */
+        private static boolean connectionsWaiting() {
+            return pool instanceof ThreadPoolExecutor && !((ThreadPoolExecutor) pool).getQueue().isEmpty();
+        }
+
+        static void parseHeader(String headerLine, Map<String, String> headers) {
+            int colon = headerLine.indexOf(':');
+            if(colon > 0)
+                headers.put(headerLine.substring(0, colon).trim().toLowerCase(), headerLine.substring(colon + 1).trim());
+        }
+
+        /*
+         * HTTP/1.1 connections persist unless the client asks to close, HTTP/1.0 ones only if the client asks to keep alive
+         */
+        static boolean isKeepAlive(String requestLine, Map<String, String> headers) {
+            String connection = headers.getOrDefault("connection", "").toLowerCase();
+            if(requestLine.endsWith("HTTP/1.1"))
+                return !connection.contains("close");
+            return connection.contains("keep-alive");
+        }
+
+        /*
+         * the in-process cache counters as plain text for the admin stats path
+         */
+        private static byte[] statsBody() {
+            String body = "l1.hits " + nearCache.hits() + "\n" +
+                          "l1.misses " + nearCache.misses() + "\n" +
+                          "l1.evictions " + nearCache.evictions() + "\n" +
+                          "l1.invalidations " + nearCache.invalidations() + "\n" +
+                          "l1.entries " + nearCache.size() + "\n" +
+                          "l1.bytes " + nearCache.sizeBytes() + "\n" +
+                          "search.hits " + searchCache.hits() + "\n" +
+                          "search.misses " + searchCache.misses() + "\n" +
+                          "search.entries " + searchCache.size() + "\n" +
+                          "index.pictures " + pictureIndex.size() + "\n";
+            return body.getBytes();
+        }
+
+        /*
+         * the file a request target names, null if there is none: the picture for a thumbnail path, otherwise what
+         * locateFile finds. Results are kept in pathCache, so this only runs the first time a target is asked for
+         */
+        static File resolveTarget(String target) {
+            if(target.startsWith(THUMBS_PATH)) {
+                String name = target.substring(THUMBS_PATH.length());
+                File picture = new File(PICTURES_DIR, name);
+                if(name.isEmpty() || name.contains("/") || name.startsWith(".") || !picture.isFile())
+                    return null;
+                return picture;
+            }
+            File file = locateFile(target);
+            if(file != null && file.toPath().normalize().startsWith(LOGS_DIR)) // client addresses, not for visitors
+                return null;
+            return file;
+        }
+
         /*
          * manipulates the file name to make it readable (if its not)
          * attempts to open the requested file. upon failure, make 
          * some more adjustments to the file name and try again
          */
-        private static File locateFile(String fileName) {
+        static File locateFile(String fileName) {
             File file = null;
             if(fileName.equals("/")) // user sent blank information after host/port, default to index page
                 fileName += "index.html";
@@ -309,7 +1165,7 @@ public final class WebServer {
 //            }
 
             file = new File(fileName);
-            if(file.exists())
+            if(file.isFile())
                 return file;
 
             // manipulate the beginning some more to see if we can locate the file
@@ -324,7 +1180,7 @@ public final class WebServer {
                 fileName = fileName.substring(0, fileName.lastIndexOf("."));
 
             file = new File(fileName); // retry with preceeding "./" if not found
-            if(file.exists())
+            if(file.isFile())
                 return file;
             else
                 return null;
@@ -333,7 +1189,7 @@ public final class WebServer {
         /*
          * determines a the content type of the file request based on file extension
          */
-        private static String contentType(String file) {
+        static String contentType(String file) {
             if(file.endsWith(".html") || file.endsWith(".htm"))
                 return "text/html; charset=UTF-8";
             else if(file.endsWith(".css"))
@@ -363,19 +1219,16 @@ public final class WebServer {
 		/*
 			This method takes a string and will search the library for files that contain the string.
 			The method then dynamically generates the html and returns it as a string.
+			Names come from the in-memory pictureIndex rather than a directory listing.
 		*/
-		private static String createHTML(String searchString){
+		static String createHTML(String searchString){
 			StringBuilder strBld = new StringBuilder();
-			File folder = new File("./pictures/");
-			File[] directory = folder.listFiles();
 			strBld.append("<html>\n");
 			strBld.append("<head>\n\n</head>\n");
 			strBld.append("<body>\n");
 			strBld.append("<h1>Results for " + searchString + "</h1>\n");
-			for(int i = 0; i < directory.length; i++){
-				if(directory[i].isFile() && directory[i].getName().contains(searchString)){
-					strBld.append("<img src=\"./pictures/" +  directory[i].getName() + "\" alt=\"" + directory[i].getName() + "\" style=\"height:300px;\"></br>\n");
-				}
+			for(String name : pictureIndex.search(searchString)){
+				strBld.append("<a href=\"/pictures/" + name + "\"><img src=\"" + THUMBS_PATH + name + "\" alt=\"" + name + "\" style=\"height:300px;\"></a></br>\n");
 			}
 			strBld.append("</body>\n");
 			strBld.append("</html>\n");